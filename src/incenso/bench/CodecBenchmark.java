@@ -0,0 +1,169 @@
+package incenso.bench;
+
+import incenso.common.Frame;
+import incenso.common.FrameCodec;
+import incenso.common.Packet;
+import incenso.common.PacketKeepalive;
+import incenso.common.PacketResponse;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * Compares the binary frame codec with the Java serialization of the packets it has replaced, on the traffic
+ * which dominates a cluster - keepalives and small chunk results. Prints the encoded size of a message and the
+ * time it takes to encode and decode it, averaged over many messages.
+ *
+ * The old protocol wrote every packet to a single ObjectOutputStream per connection, so the class descriptors
+ * were sent just once; a result was sent as a boolean followed by the serialized value. The old encoding is
+ * measured the same way, with a stream per round of messages.
+ *
+ * Usage: <code>java -cp incenso.jar incenso.bench.CodecBenchmark [messages per round] [rounds]</code>
+ */
+public class CodecBenchmark {
+    /**
+     * The old keepalive packet - a serializable object without any fields.
+     */
+    private static class LegacyKeepalive implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A kind of message, encoded both ways - a keepalive, or a result with a given value.
+     */
+    private static class Scenario {
+        final String name;
+
+        /**
+         * Creates the result of the message, given its sequence number. Null for a keepalive.
+         */
+        final LongFunction<Serializable> result;
+
+        Scenario(String name, LongFunction<Serializable> result) {
+            this.name = name;
+            this.result = result;
+        }
+    }
+
+    /**
+     * The results of a single round.
+     */
+    private static class Round {
+        long bytes, nanos;
+    }
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    /**
+     * Used to keep the JIT compiler from dropping the decoding.
+     */
+    private static long sink = 0;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        String text = String.join("", java.util.Collections.nCopies(32, "result "));
+
+        Scenario[] scenarios = {
+                new Scenario("keepalive", null),
+                new Scenario("int result", i -> (int) i),
+                new Scenario("string result", i -> text + i)
+        };
+
+        System.out.println("Messages per round: " + messages + ", rounds: " + rounds + ".");
+        System.out.printf("%-16s %14s %14s %14s %14s%n", "message", "old bytes", "new bytes", "old ns", "new ns");
+
+        for(Scenario s : scenarios) {
+            for(int i = 0; i < WARMUP_ROUNDS; i++) {
+                legacy(s, messages);
+                framed(s, messages);
+            }
+
+            Round old = new Round(), framed = new Round();
+
+            for(int i = 0; i < rounds; i++) {
+                Round a = legacy(s, messages), b = framed(s, messages);
+                old.bytes += a.bytes;
+                old.nanos += a.nanos;
+                framed.bytes += b.bytes;
+                framed.nanos += b.nanos;
+            }
+
+            long total = (long) messages * rounds;
+
+            System.out.printf("%-16s %14.1f %14.1f %14.1f %14.1f%n", s.name,
+                    (double) old.bytes / total, (double) framed.bytes / total,
+                    (double) old.nanos / total, (double) framed.nanos / total);
+        }
+
+        if(sink == 42)
+            System.out.println();
+    }
+
+    /**
+     * Encode and decode a round of messages the old way.
+     */
+    private static Round legacy(Scenario s, int messages) throws IOException, ClassNotFoundException {
+        Round r = new Round();
+        long start = System.nanoTime();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        // The old protocol flushed after every packet.
+        for(int i = 0; i < messages; i++) {
+            if(s.result != null) {
+                out.writeBoolean(true);
+                out.writeObject(s.result.apply(i));
+            } else {
+                out.writeObject(new LegacyKeepalive());
+            }
+
+            out.flush();
+        }
+
+        byte[] data = bytes.toByteArray();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+
+        for(int i = 0; i < messages; i++) {
+            if(s.result != null)
+                sink += in.readBoolean() ? 1 : 0;
+
+            sink += in.readObject().hashCode();
+        }
+
+        r.nanos = System.nanoTime() - start;
+        r.bytes = data.length;
+        return r;
+    }
+
+    /**
+     * Encode and decode a round of messages with the frame codec, as the transport does.
+     */
+    private static Round framed(Scenario s, int messages) throws IOException, ClassNotFoundException {
+        Round r = new Round();
+        long start = System.nanoTime();
+
+        for(int i = 0; i < messages; i++) {
+            Packet packet = s.result != null ? new PacketResponse(true, s.result.apply(i)) : new PacketKeepalive();
+            byte[] frame = FrameCodec.encode(new Frame(i, packet), 1024);
+            r.bytes += frame.length;
+
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            int length = FrameCodec.readLength(buffer);
+            Packet p = FrameCodec.decode(Arrays.copyOfRange(frame, buffer.position(), buffer.position() + length))
+                    .getPacket();
+
+            if(p instanceof PacketResponse)
+                sink += ((PacketResponse) p).getPayload(CodecBenchmark.class.getClassLoader()).hashCode();
+            else
+                sink += p.getType().getCode();
+        }
+
+        r.nanos = System.nanoTime() - start;
+        return r;
+    }
+}
@@ -0,0 +1,477 @@
+package incenso.bench;
+
+import incenso.common.CodeChunk;
+import incenso.common.Frame;
+import incenso.common.FrameCodec;
+import incenso.common.Packet;
+import incenso.common.PacketBatchResponse;
+import incenso.common.PacketExecuteBatch;
+import incenso.common.PacketHandshake;
+import incenso.common.PacketKeepalive;
+import incenso.common.PacketResponse;
+import incenso.server.transport.Client;
+import incenso.server.transport.IncensoServer;
+import incenso.server.util.Promise;
+import incenso.server.util.RemoteException;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connects a large amount of synthetic workers to a server, to check that it scales with the amount of
+ * connections rather than running out of threads. The workers do the handshake, answer the keepalives and
+ * answer every chunk with a constant result, without running it - so the test measures the server, not the work.
+ * They're driven by a few threads multiplexing the connections, like the I/O threads of the server.
+ *
+ * The test waits for the workers to connect, keeps them connected for a while, and then maps a number of chunks
+ * over them, exercising the client registry and the placement policy. Prints how long it has taken to connect
+ * the workers, how many of them have been lost or suspected, the round trip time of the keepalives, the time
+ * the registry queries take, the throughput of the chunks, and the amount of threads the server has used.
+ *
+ * Every connection takes a file descriptor on both of its ends, so the server and the workers can be run in
+ * separate processes, in case the limit of a single process is too low.
+ *
+ * Usage: <code>java -cp incenso.jar incenso.bench.LoadTest [workers] [seconds] [chunks]</code>
+ *        runs the server and the workers in one process.
+ *        <code>java -cp incenso.jar incenso.bench.LoadTest serve &lt;port&gt; [workers] [seconds] [chunks]</code>
+ *        runs just the server, waiting for the workers to connect from elsewhere.
+ *        <code>java -cp incenso.jar incenso.bench.LoadTest connect &lt;host&gt; &lt;port&gt; [workers]</code>
+ *        runs just the workers, until the server disconnects them.
+ */
+public class LoadTest {
+    /**
+     * The chunk mapped over the workers. Its result is made up by them.
+     */
+    public static class Noop implements CodeChunk {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Serializable process(Serializable data) {
+            return data;
+        }
+    }
+
+    /**
+     * The default port of the server, if it's run in the same process as the workers.
+     */
+    private static final int DEFAULT_PORT = 12350;
+
+    /**
+     * How many threads drive the synthetic workers.
+     */
+    private static final int DRIVERS = 2;
+
+    /**
+     * How long the workers are waited for.
+     */
+    private static final long CONNECT_TIMEOUT = 300;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("connect")) {
+            if(args.length < 3)
+                usage();
+
+            int workers = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+            Swarm swarm = new Swarm(new InetSocketAddress(args[1], Integer.parseInt(args[2])), workers);
+
+            swarm.connect();
+            System.out.println("Connected " + workers + " workers.");
+
+            // The workers go on until the server disconnects them.
+            swarm.awaitClosed();
+            System.out.println("Disconnected; answered " + swarm.keepalives.get() + " keepalives and "
+                    + swarm.chunks.get() + " chunks.");
+            swarm.shutdown();
+            return;
+        }
+
+        boolean serve = args.length > 0 && args[0].equals("serve");
+
+        if(serve && args.length < 2)
+            usage();
+
+        int arg = serve ? 2 : 0;
+        int port = serve ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int workers = args.length > arg ? Integer.parseInt(args[arg]) : 10000;
+        int seconds = args.length > arg + 1 ? Integer.parseInt(args[arg + 1]) : 10;
+        int chunks = args.length > arg + 2 ? Integer.parseInt(args[arg + 2]) : 20000;
+
+        run(port, workers, seconds, chunks, !serve);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadTest [workers] [seconds] [chunks]");
+        System.err.println("       LoadTest serve <port> [workers] [seconds] [chunks]");
+        System.err.println("       LoadTest connect <host> <port> [workers]");
+        System.exit(1);
+    }
+
+    private static void run(int port, int workers, int seconds, int chunks, boolean local) throws Exception {
+        int baseline = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        IncensoServer server = new IncensoServer(port);
+        AtomicLong lost = new AtomicLong();
+
+        server.onDisconnect().register(c -> lost.incrementAndGet());
+
+        Swarm swarm = local ? new Swarm(new InetSocketAddress("localhost", port), workers) : null;
+
+        System.out.println("Workers: " + workers + ", seconds: " + seconds + ", chunks: " + chunks + ".");
+
+        long start = System.nanoTime();
+
+        if(swarm != null)
+            swarm.connect();
+        else
+            System.out.println("Waiting for the workers on port " + port + ".");
+
+        if(!server.awaitClients(workers, CONNECT_TIMEOUT, TimeUnit.SECONDS)) {
+            System.out.println("Only " + server.clientCount() + " workers have connected in time.");
+            System.exit(1);
+        }
+
+        System.out.printf("Connected in %.2f s.%n", (System.nanoTime() - start) / 1e9);
+
+        // Every connection is answering the keepalives meanwhile.
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+
+        List<Client> clients = server.getRegistry().clients();
+        double rtt = 0;
+        int suspected = 0;
+
+        for(Client c : clients) {
+            rtt += c.getRTT();
+
+            if(c.isSuspected())
+                suspected++;
+        }
+
+        System.out.printf("After %d s: %d connected, %d lost, %d suspected, keepalive RTT %.2f ms on average.%n",
+                seconds, server.clientCount(), lost.get(), suspected, rtt / clients.size());
+
+        start = System.nanoTime();
+
+        for(int i = 0; i < 100; i++)
+            server.getRegistry().withCPUsAtLeast(1);
+
+        System.out.printf("Registry query over %d workers: %.1f us.%n", clients.size(),
+                (System.nanoTime() - start) / 1e3 / 100);
+
+        List<Integer> inputs = new ArrayList<>(chunks);
+
+        for(int i = 0; i < chunks; i++)
+            inputs.add(i);
+
+        start = System.nanoTime();
+
+        Promise<List<Serializable>, RemoteException> results = server.map(Noop.class, inputs);
+        AtomicReference<String> outcome = new AtomicReference<>("finished");
+
+        results.orElse(e -> outcome.set("failed (" + e.getMessage() + ")"));
+        results.resolve();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Mapped %d chunks: %s in %.2f s, %.0f chunks / s.%n", chunks, outcome.get(), elapsed,
+                chunks / elapsed);
+
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - (swarm != null ? DRIVERS : 0);
+
+        System.out.println("Threads started by the server: " + (threads - baseline) + ", lost workers: "
+                + lost.get() + ".");
+
+        server.close();
+        server.dispose();
+
+        if(swarm != null)
+            swarm.shutdown();
+
+        System.exit(0);
+    }
+
+    /**
+     * The synthetic workers, spread over the driver threads.
+     */
+    private static class Swarm {
+        private final InetSocketAddress address;
+
+        private final int size;
+
+        private final Driver[] drivers = new Driver[DRIVERS];
+
+        private final AtomicLong keepalives = new AtomicLong();
+
+        private final AtomicLong chunks = new AtomicLong();
+
+        private final AtomicLong closed = new AtomicLong();
+
+        Swarm(InetSocketAddress address, int size) throws IOException {
+            this.address = address;
+            this.size = size;
+
+            for(int i = 0; i < DRIVERS; i++)
+                drivers[i] = new Driver("Load test driver #" + i + ".");
+        }
+
+        /**
+         * Connect all the workers. The connections are opened one at a time, so that the backlog
+         * of the server isn't overrun.
+         */
+        void connect() throws IOException {
+            for(int i = 0; i < size; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+
+                drivers[i % DRIVERS].add(new Worker(channel));
+            }
+        }
+
+        /**
+         * Wait until all the workers have been disconnected.
+         */
+        void awaitClosed() throws InterruptedException {
+            while(closed.get() < size)
+                Thread.sleep(100);
+        }
+
+        void shutdown() {
+            for(Driver d : drivers)
+                d.shutdown();
+        }
+
+        /**
+         * A synthetic worker - a connection and the state of its frames.
+         */
+        private class Worker {
+            final SocketChannel channel;
+
+            /**
+             * The frames received so far, grown when a frame doesn't fit.
+             */
+            ByteBuffer in = ByteBuffer.allocate(256);
+
+            /**
+             * Frames waiting for the connection to become writable.
+             */
+            final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+            SelectionKey key;
+
+            Worker(SocketChannel channel) {
+                this.channel = channel;
+            }
+
+            void readable() throws IOException {
+                if(channel.read(in) < 0)
+                    throw new IOException("Disconnected.");
+
+                in.flip();
+
+                while(in.hasRemaining()) {
+                    int start = in.position();
+                    int length = FrameCodec.readLength(in);
+
+                    if(length < 0)
+                        break;
+
+                    if(in.remaining() < length) {
+                        in.position(start);
+                        break;
+                    }
+
+                    byte[] body = new byte[length];
+                    in.get(body);
+
+                    Frame frame = FrameCodec.decode(body);
+                    answer(frame.getId(), frame.getPacket());
+                }
+
+                in.compact();
+
+                // The rest of the frame is reported as readable again once there's room for it.
+                if(!in.hasRemaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2);
+                    in.flip();
+                    grown.put(in);
+                    in = grown;
+                }
+            }
+
+            void answer(long id, Packet p) throws IOException {
+                switch(p.getType()) {
+                    case PACKET_HANDSHAKE: {
+                        PacketHandshake h = (PacketHandshake) p;
+
+                        write(id, new PacketHandshake(h.jvmVersion(), h.jvmVendor(), 1024 * 1024, 1024 * 1024,
+                                1, 1, Collections.emptySet(), FrameCodec.COMPRESSION_DISABLED, h.getSession(),
+                                Collections.emptySet(), Collections.emptySet()));
+                        break;
+                    }
+
+                    case PACKET_KEEPALIVE:
+                        keepalives.incrementAndGet();
+                        write(id, new PacketKeepalive());
+                        break;
+
+                    case PACKET_EXECUTE:
+                        chunks.incrementAndGet();
+                        write(id, new PacketResponse(true, true));
+                        break;
+
+                    case PACKET_EXECUTE_BATCH: {
+                        int n = ((PacketExecuteBatch) p).getInputs().size();
+                        List<PacketResponse> responses = new ArrayList<>(n);
+
+                        for(int i = 0; i < n; i++)
+                            responses.add(new PacketResponse(true, true));
+
+                        chunks.addAndGet(n);
+                        write(id, new PacketBatchResponse(responses));
+                        break;
+                    }
+
+                    default:
+                        // Nothing else is answered.
+                        break;
+                }
+            }
+
+            void write(long id, Packet p) throws IOException {
+                ByteBuffer frame = ByteBuffer.wrap(FrameCodec.encode(new Frame(id, p)));
+
+                if(pending.isEmpty())
+                    channel.write(frame);
+
+                if(frame.hasRemaining()) {
+                    pending.add(frame);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+
+            void writable() throws IOException {
+                while(!pending.isEmpty()) {
+                    channel.write(pending.peek());
+
+                    if(pending.peek().hasRemaining())
+                        return;
+
+                    pending.poll();
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            void close() {
+                key.cancel();
+
+                try {
+                    channel.close();
+                } catch(IOException e) {
+                    // Nothing to do about it.
+                }
+
+                closed.incrementAndGet();
+            }
+        }
+
+        /**
+         * A thread multiplexing the connections of many workers.
+         */
+        private class Driver implements Runnable {
+            private final Selector selector;
+
+            private final ConcurrentLinkedQueue<Worker> added = new ConcurrentLinkedQueue<>();
+
+            private volatile boolean running = true;
+
+            Driver(String name) throws IOException {
+                selector = Selector.open();
+
+                Thread thread = new Thread(this, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            void add(Worker w) {
+                added.add(w);
+                selector.wakeup();
+            }
+
+            void shutdown() {
+                running = false;
+                selector.wakeup();
+            }
+
+            @Override
+            public void run() {
+                while(running) {
+                    try {
+                        selector.select();
+                    } catch(IOException e) {
+                        break;
+                    }
+
+                    Worker w;
+
+                    while((w = added.poll()) != null) {
+                        try {
+                            w.key = w.channel.register(selector, SelectionKey.OP_READ, w);
+                        } catch(IOException e) {
+                            closed.incrementAndGet();
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+                    while(it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        Worker worker = (Worker) key.attachment();
+
+                        try {
+                            if(key.isValid() && key.isReadable())
+                                worker.readable();
+
+                            if(key.isValid() && key.isWritable())
+                                worker.writable();
+                        } catch(IOException | RuntimeException e) {
+                            worker.close();
+                        }
+                    }
+                }
+
+                for(SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch(IOException e) {
+                        // Nothing to do about it.
+                    }
+                }
+
+                try {
+                    selector.close();
+                } catch(IOException e) {
+                    // Nothing to do about it.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package incenso.bench;
+
+import incenso.server.util.Promise;
+import incenso.server.util.PromiseExecutors;
+import incenso.server.util.RemoteException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Measures the cost of processing short promises - like the keepalives, sent to every client every second -
+ * on the promise executors, compared with starting a thread for every promise, as promises used to be processed.
+ * Prints the time per promise and the amount of threads started to process them.
+ *
+ * Usage: <code>java -cp incenso.jar incenso.bench.PromiseBenchmark [promises per round] [rounds]</code>
+ */
+public class PromiseBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        int promises = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cpus = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Promises per round: " + promises + ", rounds: " + rounds + ".");
+        System.out.printf("%-24s %14s %18s%n", "executor", "us / promise", "threads started");
+
+        run("thread per promise", () -> r -> new Thread(r).start(), promises, rounds);
+        run("virtual threads", PromiseExecutors::virtualThreads, promises, rounds);
+        run("cached pool", PromiseExecutors::cached, promises, rounds);
+        run("bounded pool (" + cpus + ")", () -> PromiseExecutors.bounded(cpus), promises, rounds);
+
+        System.exit(0);
+    }
+
+    private static void run(String name, Supplier<Executor> factory, int promises, int rounds)
+            throws InterruptedException {
+        Executor executor = factory.get();
+        Promise.setExecutor(executor);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        for(int i = 0; i < WARMUP_ROUNDS; i++)
+            round(promises);
+
+        long started = threads.getTotalStartedThreadCount();
+        long nanos = 0;
+
+        for(int i = 0; i < rounds; i++)
+            nanos += round(promises);
+
+        started = threads.getTotalStartedThreadCount() - started;
+        long total = (long) promises * rounds;
+
+        System.out.printf("%-24s %14.2f %18d%n", name, nanos / 1000.0 / total, started);
+
+        if(executor instanceof ExecutorService)
+            ((ExecutorService) executor).shutdown();
+    }
+
+    /**
+     * Create a round of promises and wait until all of them are resolved.
+     * @return The time it has taken, in nanoseconds.
+     */
+    private static long round(int promises) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(promises);
+        long start = System.nanoTime();
+
+        // A promise which finishes right away.
+        for(int i = 0; i < promises; i++) {
+            new Promise<Boolean, RemoteException>() {
+                @Override
+                protected void onResolve() {
+                    done.countDown();
+                }
+
+                @Override
+                protected void process() {
+                    finish(true);
+                }
+            };
+        }
+
+        done.await();
+        return System.nanoTime() - start;
+    }
+}
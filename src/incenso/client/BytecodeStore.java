@@ -0,0 +1,172 @@
+package incenso.client;
+
+import incenso.common.ClassBundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed store of the bytecode received from the server, keyed by the hash of the bytecode.
+ * It lets the server skip sending bytecode the client already holds.
+ *
+ * The bytecode is kept on disk, one file per hash, so it survives restarts of the client. The total size of the
+ * store is capped - when it's exceeded, the least recently used bytecode is evicted. The order of use is kept in
+ * the modification times of the files, so it's retained across restarts as well.
+ *
+ * @see incenso.common.ClassBundle
+ */
+class BytecodeStore {
+    private static Logger log = Logger.getLogger("Incenso");
+
+    /**
+     * The directory holding the bytecode files.
+     */
+    private final File directory;
+
+    /**
+     * Maximum total size of the stored bytecode, in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * Sizes of the stored bytecode files, keyed by hash, in access order.
+     */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total size of the stored bytecode, in bytes.
+     */
+    private long size = 0;
+
+    /**
+     * Open a store in a given directory, picking up the bytecode stored there by previous runs.
+     * @param directory The directory. It's created if it doesn't exist.
+     * @param capacity Maximum total size of the stored bytecode, in bytes.
+     */
+    BytecodeStore(File directory, long capacity) {
+        this.directory = directory;
+        this.capacity = capacity;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            log.warning("Couldn't create the bytecode store directory " + directory + ".");
+
+        File[] files = directory.listFiles((dir, name) -> name.matches("[0-9a-f]{64}"));
+
+        if(files == null)
+            return;
+
+        // Least recently used first.
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+
+        for(File f : files) {
+            index.put(f.getName(), f.length());
+            size += f.length();
+        }
+
+        evict();
+
+        log.info("Bytecode store holds " + index.size() + " classes (" + size + " bytes).");
+    }
+
+    /**
+     * Store bytecode with a given hash, evicting the least recently used bytecode if needed.
+     * Bytecode which doesn't match the hash isn't stored.
+     */
+    public synchronized void put(String hash, byte[] data) {
+        if(index.containsKey(hash))
+            return;
+
+        if(!ClassBundle.hash(data).equals(hash)) {
+            log.warning("Refused to store bytecode " + hash + ", which doesn't match its hash.");
+            return;
+        }
+
+        try {
+            // Write the file atomically, so that a crash never leaves a truncated file behind.
+            File tmp = File.createTempFile(hash, ".tmp", directory);
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), file(hash).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            log.warning("Couldn't store bytecode " + hash + ".");
+            return;
+        }
+
+        index.put(hash, (long) data.length);
+        size += data.length;
+
+        evict();
+    }
+
+    /**
+     * @return The bytecode with a given hash, or null if it's not held. Bytecode which doesn't match the hash
+     *         anymore, e.g. because the file has been corrupted, is evicted.
+     */
+    public synchronized byte[] get(String hash) {
+        if(index.get(hash) == null)
+            return null;
+
+        File f = file(hash);
+        byte[] data;
+
+        try {
+            data = Files.readAllBytes(f.toPath());
+        } catch(IOException e) {
+            // The file has been removed behind our back.
+            size -= index.remove(hash);
+            return null;
+        }
+
+        if(!ClassBundle.hash(data).equals(hash)) {
+            log.warning("Evicted bytecode " + hash + ", which doesn't match its hash.");
+
+            if(!f.delete())
+                log.warning("Couldn't evict bytecode " + hash + ".");
+
+            size -= index.remove(hash);
+            return null;
+        }
+
+        f.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    /**
+     * @return Whether bytecode with a given hash is held.
+     */
+    public synchronized boolean contains(String hash) {
+        return index.containsKey(hash);
+    }
+
+    /**
+     * @return The hashes of all the held bytecode.
+     */
+    public synchronized Set<String> hashes() {
+        return new HashSet<>(index.keySet());
+    }
+
+    /**
+     * Evict the least recently used bytecode until the store fits its capacity.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+
+        while(size > capacity && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+
+            if(!file(e.getKey()).delete())
+                log.warning("Couldn't evict bytecode " + e.getKey() + ".");
+
+            size -= e.getValue();
+            it.remove();
+        }
+    }
+
+    private File file(String hash) {
+        return new File(directory, hash);
+    }
+}
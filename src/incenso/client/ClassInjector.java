@@ -0,0 +1,123 @@
+package incenso.client;
+
+import incenso.common.ClassBundle;
+import incenso.common.MissingBytecodeException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A classloader defining the classes sent by the server.
+ *
+ * Every module gets its own instance, which means unlinking the module will end up sooner or later
+ * unlinking all the classes defined by it.
+ *
+ * Classes which have been added to the injector are loaded child-first, so that the bytecode sent by the server
+ * takes precedence over the bytecode which may be present on the client classpath. Everything else is delegated
+ * to the parent.
+ */
+class ClassInjector extends ClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    /**
+     * The store holding the bytecode received from the server.
+     */
+    private final BytecodeStore store;
+
+    /**
+     * Hashes of the classes which can be defined by this injector, keyed by class name.
+     */
+    private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Bytecode of the classes which haven't been defined yet, keyed by class name.
+     * It's held here rather than looked up in the store, since the store may evict it in the meantime.
+     */
+    private final ConcurrentHashMap<String, byte[]> undefined = new ConcurrentHashMap<>();
+
+    ClassInjector(BytecodeStore store) {
+        super(ClassInjector.class.getClassLoader());
+        this.store = store;
+    }
+
+    /**
+     * Add the classes from a bundle to the injector. The bytecode carried by the bundle is put in the store.
+     * @param bundle The bundle.
+     * @throws MissingBytecodeException if the bundle leaves out bytecode which isn't in the store.
+     * @throws IllegalArgumentException if the bundle carries bytecode which doesn't match its hash.
+     * @throws IllegalStateException if a class from the bundle has already been added with a different bytecode.
+     */
+    public void add(ClassBundle bundle) throws MissingBytecodeException {
+        Map<String, byte[]> bytecode = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for(ClassBundle.Entry e : bundle.getEntries()) {
+            // Classes this injector already knows about don't need their bytecode.
+            if(e.getHash().equals(hashes.get(e.getName())))
+                continue;
+
+            // The hash decides which bytecode is reused later on, so it has to be the hash of the bytecode.
+            if(e.getBytecode() != null && !ClassBundle.hash(e.getBytecode()).equals(e.getHash()))
+                throw new IllegalArgumentException("The bytecode of class " + e.getName()
+                        + " doesn't match its hash.");
+
+            byte[] data = e.getBytecode() != null ? e.getBytecode() : store.get(e.getHash());
+
+            if(data == null)
+                missing.add(e.getHash());
+            else
+                bytecode.put(e.getName(), data);
+        }
+
+        // Report all the missing bytecode at once, so that the server can send it in one go.
+        if(!missing.isEmpty())
+            throw new MissingBytecodeException(missing);
+
+        for(ClassBundle.Entry e : bundle.getEntries()) {
+            if(e.getBytecode() != null)
+                store.put(e.getHash(), e.getBytecode());
+
+            String previous = hashes.putIfAbsent(e.getName(), e.getHash());
+
+            if(previous == null)
+                undefined.put(e.getName(), bytecode.get(e.getName()));
+            else if(!previous.equals(e.getHash()))
+                throw new IllegalStateException("Class " + e.getName()
+                        + " is already defined with different bytecode.");
+        }
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if(!hashes.containsKey(name))
+            return super.loadClass(name, resolve);
+
+        synchronized(getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+
+            if(c == null)
+                c = findClass(name);
+
+            if(resolve)
+                resolveClass(c);
+
+            return c;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        // Called under the class loading lock, so the class can't be defined twice.
+        byte[] bytecode = undefined.remove(name);
+
+        if(bytecode == null)
+            throw new ClassNotFoundException(name);
+
+        return defineClass(name, bytecode, 0, bytecode.length);
+    }
+}
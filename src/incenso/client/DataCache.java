@@ -0,0 +1,291 @@
+package incenso.client;
+
+import incenso.common.ClassBundle;
+import incenso.common.Serialization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the data stored by the server, so that the data used by many chunks doesn't have to be sent
+ * along with each of them. The chunks read it by key.
+ *
+ * The data is kept in memory up to a budget. Beyond that, the least recently used data is spilled to disk,
+ * and once the disk capacity is exceeded as well, the least recently used data is dropped. The server learns
+ * about the dropped keys with the next response to a store.
+ *
+ * Unlike the bytecode store, the cache doesn't survive restarts of the client - the server wouldn't know
+ * about the data anyway.
+ *
+ * @see incenso.common.ChunkContext
+ */
+class DataCache {
+    private static Logger log = Logger.getLogger("Incenso");
+
+    /**
+     * A value deserialized with a given class loader. The loader is only weakly reachable from here, so that
+     * the cache doesn't keep an unlinked module from being unloaded.
+     */
+    private static class Decoded {
+        final WeakReference<ClassLoader> loader;
+        final SoftReference<Serializable> value;
+
+        Decoded(ClassLoader loader, Serializable value) {
+            this.loader = new WeakReference<>(loader);
+            this.value = new SoftReference<>(value);
+        }
+    }
+
+    /**
+     * The directory holding the spilled data.
+     */
+    private final File directory;
+
+    /**
+     * Maximum total size of the data held in memory, in bytes.
+     */
+    private final long budget;
+
+    /**
+     * Maximum total size of the data spilled to disk, in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * The data held in memory, in access order.
+     */
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Sizes of the data spilled to disk, in access order.
+     */
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long memorySize = 0, diskSize = 0;
+
+    /**
+     * The amount of values stored so far. Tells whether a value has been replaced while it was being deserialized.
+     */
+    private long puts = 0;
+
+    /**
+     * The last deserialized value of every key, reused as long as it's read with the same class loader.
+     * Only softly reachable, so that it doesn't count against the budget.
+     */
+    private final HashMap<String, Decoded> decoded = new HashMap<>();
+
+    /**
+     * The keys which have been dropped since the server has last been told about it.
+     */
+    private final List<String> dropped = new ArrayList<>();
+
+    /**
+     * @param directory The directory to spill the data to. It's created if it doesn't exist, and cleared if it does.
+     * @param budget Maximum total size of the data held in memory, in bytes.
+     * @param capacity Maximum total size of the data spilled to disk, in bytes.
+     */
+    DataCache(File directory, long budget, long capacity) {
+        this.directory = directory;
+        this.budget = budget;
+        this.capacity = capacity;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            log.warning("Couldn't create the data cache directory " + directory + ".");
+
+        // Whatever has been left behind by the previous runs is of no use.
+        File[] files = directory.listFiles((dir, name) -> name.matches("[0-9a-f]{64}"));
+
+        if(files != null)
+            for(File f : files)
+                if(!f.delete())
+                    log.warning("Couldn't remove stale cached data " + f.getName() + ".");
+    }
+
+    /**
+     * Store a value under a given key, replacing the previous one.
+     * @param key The key.
+     * @param value The serialized value.
+     */
+    public synchronized void put(String key, byte[] value) {
+        remove(key);
+        dropped.remove(key);
+        puts++;
+
+        memory.put(key, value);
+        memorySize += value.length;
+
+        spill();
+    }
+
+    /**
+     * Remove the value stored under a given key.
+     * @return Whether there was such a value.
+     */
+    public synchronized boolean remove(String key) {
+        decoded.remove(key);
+
+        byte[] value = memory.remove(key);
+
+        if(value != null) {
+            memorySize -= value.length;
+            return true;
+        }
+
+        Long size = disk.remove(key);
+
+        if(size != null) {
+            diskSize -= size;
+            file(key).delete();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The serialized value stored under a given key, or null if there's none. Spilled values are
+     *         brought back to memory.
+     */
+    public synchronized byte[] get(String key) {
+        byte[] value = memory.get(key);
+
+        if(value != null || !disk.containsKey(key))
+            return value;
+
+        File f = file(key);
+
+        try {
+            value = Files.readAllBytes(f.toPath());
+        } catch(IOException e) {
+            log.warning("Couldn't read cached data " + key + ".");
+            remove(key);
+            dropped.add(key);
+            return null;
+        }
+
+        diskSize -= disk.remove(key);
+        f.delete();
+
+        memory.put(key, value);
+        memorySize += value.length;
+
+        spill();
+
+        return value;
+    }
+
+    /**
+     * @return The value stored under a given key, deserialized with a given class loader, or null if there's
+     *         none. The same instance is returned as long as it's in use, so it should be treated as read-only.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public Serializable get(String key, ClassLoader loader) throws IOException, ClassNotFoundException {
+        byte[] data;
+        long stamp;
+
+        synchronized(this) {
+            Decoded d = decoded.get(key);
+            Serializable value = d != null && d.loader.get() == loader ? d.value.get() : null;
+
+            if(value != null) {
+                // Keep the recency of the serialized value up to date.
+                get(key);
+                return value;
+            }
+
+            data = get(key);
+            stamp = puts;
+        }
+
+        if(data == null)
+            return null;
+
+        // Deserialize outside of the lock, the data can be large.
+        Serializable value = Serialization.deserialize(data, loader);
+
+        synchronized(this) {
+            // Unless the value has been replaced or removed in the meantime.
+            if(puts == stamp && (memory.containsKey(key) || disk.containsKey(key)))
+                decoded.put(key, new Decoded(loader, value));
+        }
+
+        return value;
+    }
+
+    /**
+     * Forget the values deserialized with a given class loader, e.g. the loader of a module being unlinked.
+     * The values refer to their classes, and so to the loader - it couldn't be unloaded until the soft
+     * references to them are cleared, i.e. until the memory runs low.
+     * @param loader The class loader.
+     */
+    public synchronized void forget(ClassLoader loader) {
+        decoded.values().removeIf(d -> {
+            ClassLoader l = d.loader.get();
+            return l == null || l == loader;
+        });
+    }
+
+    /**
+     * @return The keys which have been dropped since the last call.
+     */
+    public synchronized List<String> drainDropped() {
+        List<String> keys = new ArrayList<>(dropped);
+        dropped.clear();
+        return keys;
+    }
+
+    /**
+     * Spill the least recently used values to disk until the memory fits its budget, and drop the least
+     * recently used spilled values until the disk fits its capacity.
+     */
+    private void spill() {
+        Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+
+        while(memorySize > budget && it.hasNext()) {
+            Map.Entry<String, byte[]> e = it.next();
+            byte[] value = e.getValue();
+
+            it.remove();
+            memorySize -= value.length;
+
+            try {
+                Files.write(file(e.getKey()).toPath(), value);
+                disk.put(e.getKey(), (long) value.length);
+                diskSize += value.length;
+            } catch(IOException ex) {
+                log.warning("Couldn't spill cached data " + e.getKey() + ".");
+                decoded.remove(e.getKey());
+                dropped.add(e.getKey());
+            }
+        }
+
+        Iterator<Map.Entry<String, Long>> dit = disk.entrySet().iterator();
+
+        while(diskSize > capacity && dit.hasNext()) {
+            Map.Entry<String, Long> e = dit.next();
+
+            if(!file(e.getKey()).delete())
+                log.warning("Couldn't drop cached data " + e.getKey() + ".");
+
+            dit.remove();
+            diskSize -= e.getValue();
+            decoded.remove(e.getKey());
+            dropped.add(e.getKey());
+        }
+    }
+
+    /**
+     * @return The file holding the spilled value of a given key. Keys are arbitrary strings, so they're hashed.
+     */
+    private File file(String key) {
+        return new File(directory, ClassBundle.hash(key.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,82 @@
+package incenso.client;
+
+import incenso.common.MissingPayloadException;
+import incenso.common.Payload;
+
+import java.util.*;
+
+/**
+ * Remembers the recently received large chunk inputs by their hash, so that the server can send just the hash
+ * when the same input is used again. The total size of the remembered inputs is capped - when it's exceeded,
+ * the least recently used inputs are forgotten, and the server falls back to sending them in full.
+ *
+ * @see Payload
+ */
+class PayloadCache {
+    /**
+     * Maximum total size of the remembered inputs, in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * The remembered inputs, keyed by hash, in access order.
+     */
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size = 0;
+
+    /**
+     * @param capacity Maximum total size of the remembered inputs, in bytes.
+     */
+    PayloadCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Resolve the data of the given payloads, remembering the cached ones and looking up the references.
+     * @param payloads The payloads.
+     * @return The data of every payload, in the same order.
+     * @throws MissingPayloadException listing every reference to data which isn't remembered.
+     */
+    public synchronized List<byte[]> resolve(List<Payload> payloads) throws MissingPayloadException {
+        List<byte[]> data = new ArrayList<>(payloads.size());
+        List<String> missing = new ArrayList<>();
+
+        // Data sent along in the same request, which is found even if it doesn't fit the cache.
+        Map<String, byte[]> received = new HashMap<>();
+
+        for(Payload p : payloads) {
+            byte[] d = p.getData();
+
+            if(d != null && p.getHash() != null) {
+                received.put(p.getHash(), d);
+                put(p.getHash(), d);
+            } else if(d == null && (d = received.get(p.getHash())) == null
+                    && (d = entries.get(p.getHash())) == null) {
+                missing.add(p.getHash());
+            }
+
+            data.add(d);
+        }
+
+        if(!missing.isEmpty())
+            throw new MissingPayloadException(missing);
+
+        return data;
+    }
+
+    private void put(String hash, byte[] data) {
+        if(entries.containsKey(hash))
+            return;
+
+        entries.put(hash, data);
+        size += data.length;
+
+        Iterator<byte[]> it = entries.values().iterator();
+
+        while(size > capacity && it.hasNext()) {
+            size -= it.next().length;
+            it.remove();
+        }
+    }
+}
@@ -3,9 +3,31 @@ package incenso.client;
 import incenso.common.*;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -20,13 +42,107 @@ public class Start {
     private static Logger log = Logger.getLogger("Incenso");
 
     /**
-     * HashMap to associate module names with class loaders.
+     * A map to associate module names with class loaders.
      * This allows us to provide quick lookup functionality for unlink and upload packets.
      *
-     * This HashMap will contain the only instance of ClassInjector available, which means
+     * This map will contain the only instance of ClassInjector available, which means
      * unlinking it will end up sooner or later unlinking all the classes resolved by it.
      */
-    private static HashMap<String, ClassInjector> modules;
+    private static ConcurrentHashMap<String, ClassInjector> modules = new ConcurrentHashMap<>();
+
+    /**
+     * The bytecode received from the server, keyed by its hash.
+     * Kept on disk, in the directory given by the `incenso.bytecode.dir' property, capped to
+     * `incenso.bytecode.capacity' bytes.
+     */
+    private static BytecodeStore store = new BytecodeStore(
+            new File(System.getProperty("incenso.bytecode.dir",
+                    new File(System.getProperty("java.io.tmpdir"), "incenso-bytecode").getPath())),
+            Long.getLong("incenso.bytecode.capacity", 64L * 1024 * 1024));
+
+    /**
+     * Classes which have been injected into modules, keyed by the digest of their bundle, so that a class isn't
+     * reused once any of the classes it depends on changes.
+     * They're executed in place of the bundles sent along with the chunks, and held until the module is unlinked.
+     */
+    private static ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Classes defined to execute chunks which don't belong to any module, keyed by the digest of their bundle.
+     * Every bundle gets its own injector, which is reused as long as the bundle keeps being executed.
+     *
+     * The classes are only softly reachable from here, so that an idle injector is reclaimed by the regular
+     * garbage collection once the memory gets tight, instead of having to be unlinked explicitly.
+     */
+    private static ConcurrentHashMap<String, SoftReference<Class<?>>> pool = new ConcurrentHashMap<>();
+
+    /**
+     * Define the root class of a bundle with a given class injector.
+     *
+     * @param bundle The bundle.
+     * @param injector The injector to define the classes with.
+     * @return The root class.
+     * @throws ClassNotFoundException
+     * @throws MissingBytecodeException if the bundle leaves out bytecode the client doesn't hold.
+     */
+    private static Class<?> define(ClassBundle bundle, ClassInjector injector)
+            throws ClassNotFoundException, MissingBytecodeException {
+        injector.add(bundle);
+        return injector.loadClass(bundle.getName());
+    }
+
+    /**
+     * Look up the root class of a bundle, or define it with a pooled injector if it's not defined yet.
+     *
+     * @param bundle The bundle.
+     * @param isolated Whether to ignore the classes injected into modules.
+     * @return The root class.
+     * @throws ClassNotFoundException
+     * @throws MissingBytecodeException if the bundle leaves out bytecode the client doesn't hold.
+     */
+    private static Class<?> resolve(ClassBundle bundle, boolean isolated)
+            throws ClassNotFoundException, MissingBytecodeException {
+        String digest = bundle.getDigest();
+        Class<?> c = isolated ? null : classes.get(digest);
+
+        if(c != null)
+            return c;
+
+        SoftReference<Class<?>> ref = pool.get(digest);
+        c = ref != null ? ref.get() : null;
+
+        if(c == null) {
+            c = define(bundle, new ClassInjector(store));
+
+            // Forget the injectors which have been reclaimed in the meantime.
+            pool.values().removeIf(x -> x.get() == null);
+            pool.put(digest, new SoftReference<>(c));
+        }
+
+        return c;
+    }
+
+    /**
+     * The data stored by the server. Held in memory up to `incenso.cache.memory' bytes, and spilled to
+     * the directory given by the `incenso.cache.dir' property up to `incenso.cache.capacity' bytes.
+     */
+    private static DataCache cache = new DataCache(
+            new File(System.getProperty("incenso.cache.dir",
+                    new File(System.getProperty("java.io.tmpdir"), "incenso-cache").getPath())),
+            Long.getLong("incenso.cache.memory", 256L * 1024 * 1024),
+            Long.getLong("incenso.cache.capacity", 1024L * 1024 * 1024));
+
+    /**
+     * The recently received large chunk inputs, which the server may refer to by hash. Capped to
+     * `incenso.payload.capacity' bytes.
+     */
+    private static PayloadCache payloads = new PayloadCache(
+            Long.getLong("incenso.payload.capacity", 64L * 1024 * 1024));
+
+    /**
+     * Tracks the unlinked modules until they're unloaded.
+     */
+    private static UnloadTracker unloads;
 
     /**
      * Milliseconds since last keepalive packet.
@@ -34,224 +150,711 @@ public class Start {
     private static long beat = 0;
 
     /**
-     * A custom classloader which exposes the `resolveClass' functionality.
+     * The amount of chunks which can be processed at once. Reported to the server in the handshake.
+     */
+    private static final int slots = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The pool processing the chunks, so that the message loop can keep reading packets
+     * (and answering keepalives) while chunks are being processed.
+     */
+    private static final ThreadPoolExecutor workers =
+            new ThreadPoolExecutor(slots, slots, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+
+    /**
+     * The data lane - handles the packets which aren't answered by the message loop right away, one at a time,
+     * in the order they have arrived. Storing data or defining classes would hold up the keepalives otherwise.
+     */
+    private static final ExecutorService lane = Executors.newSingleThreadExecutor();
+
+    /**
+     * The amount of chunks processed so far, reported in the telemetry.
+     */
+    private static final AtomicLong completed = new AtomicLong();
+
+    /**
+     * Whether the client agrees to compress the frames, given by the `incenso.compression' property.
+     */
+    private static final boolean compression =
+            Boolean.parseBoolean(System.getProperty("incenso.compression", "true"));
+
+    /**
+     * The compression threshold negotiated in the handshake.
+     */
+    private static volatile int compressionThreshold = FrameCodec.COMPRESSION_DISABLED;
+
+    /**
+     * Guards <code>link</code>, <code>heldBack</code> and <code>dropped</code>.
+     */
+    private static final Object replyLock = new Object();
+
+    /**
+     * Taken by the threads sending the responses of the data lane before <code>replyLock</code>, so that at most
+     * one of them competes with the control lane. A keepalive waits for a single frame at most.
+     */
+    private static final Object dataLane = new Object();
+
+    /**
+     * The stream the responses are sent to. Null while the client is disconnected, or connected but waiting
+     * for the PacketResume.
+     */
+    private static DataOutputStream link = null;
+
+    /**
+     * Encoded responses which couldn't be sent, keyed by the request ID. They're sent once the server
+     * resumes the session, provided it still waits for them.
+     */
+    private static final LinkedHashMap<Long, byte[]> heldBack = new LinkedHashMap<>();
+
+    /**
+     * The size of the held back responses in bytes, and the size beyond which the oldest of them are dropped,
+     * given by the `incenso.heldback.capacity' property.
+     */
+    private static long heldBackSize = 0;
+    private static final long heldBackCapacity = Long.getLong("incenso.heldback.capacity", 64L * 1024 * 1024);
+
+    /**
+     * The IDs of the held back responses which have been dropped. Once the session is resumed, the server is
+     * told that they're lost, rather than left waiting for them.
+     */
+    private static final Set<Long> dropped = new HashSet<>();
+
+    /**
+     * The tasks of the requests being processed on the worker pool, keyed by the request ID. A request is
+     * answered by whoever removes it - the pool once it's done, or nobody if it's cancelled.
+     */
+    private static final ConcurrentHashMap<Long, Queue<Future<?>>> running = new ConcurrentHashMap<>();
+
+    /**
+     * The token of the session with the server, or null before the first handshake.
+     */
+    private static volatile String session = null;
+
+    /**
+     * For how long to keep trying to reconnect after the connection is lost, in milliseconds, given by the
+     * `incenso.reconnect.timeout' property. Zero disables reconnecting.
+     */
+    private static final long reconnectTimeout = Long.getLong("incenso.reconnect.timeout", 5 * 60 * 1000);
+
+    /**
+     * The first and the largest delay between the reconnection attempts, in milliseconds.
+     * The delay doubles after every failed attempt.
+     */
+    private static final long MIN_BACKOFF = 100, MAX_BACKOFF = 10000;
+
+    /**
+     * Send a single frame to the server. Safe to call from multiple threads at once.
+     * If the client is disconnected, or the session hasn't been resumed yet, the frame is held back instead.
+     *
+     * @param id ID of the request the packet answers.
+     * @param p The packet.
+     * @throws IOException if the frame couldn't be sent. It's held back then.
+     */
+    private static void reply(long id, Packet p) throws IOException {
+        // Encode the frame up front, so that other threads aren't held up by it.
+        byte[] frame = FrameCodec.encode(new Frame(id, p), compressionThreshold);
+
+        synchronized(dataLane) {
+            emit(id, frame);
+        }
+    }
+
+    /**
+     * Send a single frame to the server on the control lane, i.e. ahead of the responses waiting to be sent.
+     *
+     * @param id ID of the request the packet answers.
+     * @param p The packet.
+     * @throws IOException if the frame couldn't be sent. It's held back then.
+     * @see #reply(long, Packet)
+     */
+    private static void control(long id, Packet p) throws IOException {
+        emit(id, FrameCodec.encode(new Frame(id, p), compressionThreshold));
+    }
+
+    /**
+     * Send the response to a chunk, unless the chunk has been cancelled - whoever removes the request from
+     * <code>running</code> answers it.
+     *
+     * @param id ID of the request the packet answers.
+     * @param tasks The tasks of the request, as registered in <code>running</code>.
+     * @param p The packet.
+     * @throws IOException if the frame couldn't be sent. It's held back then.
+     */
+    private static void reply(long id, Queue<Future<?>> tasks, Packet p) throws IOException {
+        if(running.remove(id, tasks))
+            reply(id, p);
+    }
+
+    private static void emit(long id, byte[] frame) throws IOException {
+        synchronized(replyLock) {
+            if(link == null) {
+                holdBack(id, frame);
+                return;
+            }
+
+            try {
+                link.write(frame);
+                link.flush();
+            } catch(IOException e) {
+                // The connection is lost; keep the response in case the session is resumed.
+                link = null;
+                holdBack(id, frame);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Hold a response back until the session is resumed, dropping the oldest ones held back if they
+     * take more than <code>heldBackCapacity</code> bytes. Called with <code>replyLock</code> held.
      *
-     * This is needed because we don't get sent raw class bytes (to then use a normal classloader), rather,
-     * `Class' objects. The class is already defined, but it's <i>not resolved</i> yet.
+     * @param id ID of the request the frame answers.
+     * @param frame The encoded response.
      */
-    private static class ClassInjector extends ClassLoader {
-        public void inject(Class<?> c) {
-            this.resolveClass(c);
+    private static void holdBack(long id, byte[] frame) {
+        heldBack.put(id, frame);
+        heldBackSize += frame.length;
+
+        Iterator<Map.Entry<Long, byte[]>> i = heldBack.entrySet().iterator();
+
+        while(heldBackSize > heldBackCapacity && i.hasNext()) {
+            Map.Entry<Long, byte[]> e = i.next();
+            heldBackSize -= e.getValue().length;
+            dropped.add(e.getKey());
+            i.remove();
+
+            log.warning("Dropped the held back response to the request " + e.getKey() + ".");
+        }
+    }
+
+    /**
+     * Send a single frame to the server right away, bypassing the held back responses.
+     *
+     * @param out Output stream
+     * @param id ID of the request the packet answers.
+     * @param p The packet.
+     * @throws IOException
+     */
+    private static void send(DataOutputStream out, long id, Packet p) throws IOException {
+        byte[] frame = FrameCodec.encode(new Frame(id, p), compressionThreshold);
+
+        synchronized(replyLock) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    /**
+     * Start sending the responses to a given stream, sending the held back responses the server waits for first.
+     *
+     * @param out Output stream
+     * @param pending IDs of the requests the server waits for.
+     * @throws IOException
+     */
+    private static void resume(DataOutputStream out, Set<Long> pending) throws IOException {
+        synchronized(replyLock) {
+            for(Map.Entry<Long, byte[]> e : heldBack.entrySet())
+                if(pending.contains(e.getKey()))
+                    out.write(e.getValue());
+
+            for(long id : dropped)
+                if(pending.contains(id))
+                    out.write(FrameCodec.encode(new Frame(id, new PacketResponse(false,
+                            new IOException("The response has been dropped while disconnected."))),
+                            compressionThreshold));
+
+            out.flush();
+
+            log.info("Session resumed, " + heldBack.size() + " responses held back, "
+                    + heldBack.keySet().stream().filter(pending::contains).count() + " sent, "
+                    + dropped.size() + " dropped.");
+
+            heldBack.clear();
+            heldBackSize = 0;
+            dropped.clear();
+            link = out;
+        }
+    }
+
+    /**
+     * Process a chunk. Errors have to be reported as well, otherwise the server would wait for the result forever.
+     *
+     * @param chunk The chunk.
+     * @param data The chunk input.
+     * @return The response carrying either the result or the error.
+     */
+    private static PacketResponse run(CodeChunk chunk, byte[] data) {
+        try {
+            ClassLoader loader = chunk.getClass().getClassLoader();
+
+            // The data can contain instances of the classes sent along with the chunk.
+            Serializable obj = Serialization.deserialize(data, loader);
+
+            ChunkContext context = key -> {
+                try {
+                    return cache.get(key, loader);
+                } catch(IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException("Couldn't read the data stored under " + key + ".", e);
+                }
+            };
+
+            // Start processing
+            long start = System.currentTimeMillis();
+            Serializable result = chunk.process(obj, context);
+            long end = System.currentTimeMillis();
+
+            log.info("Operation finished in " + (end - start) + "ms.");
+
+            return new PacketResponse(true, result);
+        } catch(Throwable e) {
+            // If something bad happened, tell server about it.
+            log.warning("Attempt scheduled by the remote server to execute class `" +
+                    chunk.getClass().getName() + "' has failed.");
+            return new PacketResponse(false, e);
+        } finally {
+            completed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Process a chunk and send the result to the server. Runs on the worker pool.
+     *
+     * @param id ID of the request which scheduled the chunk.
+     * @param chunk The chunk.
+     * @param data The chunk input.
+     */
+    private static void process(long id, CodeChunk chunk, byte[] data) {
+        PacketResponse response = run(chunk, data);
+
+        try {
+            // A cancelled chunk isn't answered, the server has stopped waiting for it.
+            if(running.remove(id) != null)
+                reply(id, response);
+        } catch(IOException e) {
+            // The message loop will notice the broken connection too. The result is held back.
+            log.severe("I/O exception while sending the result.");
+        }
+    }
+
+    /**
+     * Submit a task of a given request to the worker pool, so that it can be cancelled along with the request.
+     *
+     * @param id ID of the request.
+     * @param tasks The tasks of the request, as registered in <code>running</code>.
+     * @param task The task.
+     */
+    private static void submit(long id, Queue<Future<?>> tasks, Runnable task) {
+        tasks.add(workers.submit(task));
+
+        // The request might have been cancelled while the task was being submitted.
+        if(running.get(id) != tasks)
+            tasks.forEach(f -> f.cancel(true));
+    }
+
+    /**
+     * Interrupt the tasks of a given request. The request won't be answered.
+     *
+     * @param id ID of the request.
+     */
+    private static void cancel(long id) {
+        Queue<Future<?>> tasks = running.remove(id);
+
+        if(tasks != null) {
+            log.info("Cancelling the request " + id + ".");
+            tasks.forEach(f -> f.cancel(true));
+        }
+    }
+
+    /**
+     * Process a batch of inputs with a given chunk class, in parallel on the worker pool. Every input gets
+     * its own chunk instance. The responses are sent back at once, after the last input is processed.
+     *
+     * @param id ID of the request which scheduled the batch.
+     * @param tasks The tasks of the request, as registered in <code>running</code>.
+     * @param c The chunk class.
+     * @param inputs The chunk inputs.
+     */
+    private static void processBatch(long id, Queue<Future<?>> tasks, Class<?> c, List<byte[]> inputs) {
+        PacketResponse[] responses = new PacketResponse[inputs.size()];
+        AtomicInteger remaining = new AtomicInteger(inputs.size());
+
+        Runnable done = () -> {
+            try {
+                // A cancelled batch isn't answered, the server has stopped waiting for it.
+                if(running.remove(id) != null)
+                    reply(id, new PacketBatchResponse(Arrays.asList(responses)));
+            } catch(IOException e) {
+                // The message loop will notice the broken connection too. The results are held back.
+                log.severe("I/O exception while sending the results.");
+            }
+        };
+
+        if(inputs.isEmpty()) {
+            done.run();
+            return;
+        }
+
+        for(int i = 0; i < inputs.size(); i++) {
+            int index = i;
+
+            submit(id, tasks, () -> {
+                CodeChunk chunk;
+
+                try {
+                    chunk = (CodeChunk) c.getDeclaredConstructor().newInstance();
+                } catch(Exception | LinkageError e) {
+                    chunk = null;
+                    responses[index] = new PacketResponse(false, new ChunkInstantiationException(c.getName(), e));
+                }
+
+                if(chunk != null)
+                    responses[index] = run(chunk, inputs.get(index));
+
+                // The thread processing the last input sends the responses.
+                if(remaining.decrementAndGet() == 0)
+                    done.run();
+            });
         }
     }
 
     /**
      * Main channel of the server <=> client communication.
-     * Processes a single packet a time.
+     * Processes a single frame a time. Every response is tagged with the ID of the request it answers.
+     * Only the packets of the control lane and of the session are handled right here; the others are handed
+     * over to the data lane, and chunks are processed on the worker pool, so the loop doesn't wait for them.
      *
      * TODO: There are exceptions that can pop up here, but we don't handle them all, not obeying the protocol.
      *
      * @param out Output stream
      * @param in Input stream
      * @return true if looping is desired, false if not.
+     * @throws IOException if the connection has been lost.
      */
-    private static boolean messageLoop(ObjectOutputStream out, ObjectInputStream in) {
+    private static boolean messageLoop(DataOutputStream out, DataInputStream in) throws IOException {
+        byte[] message = FrameCodec.read(in);
+        Packet p;
+        long id;
+
         try {
-            Object message = in.readObject();
-            Packet p;
+            Frame frame = FrameCodec.decode(message);
+            id = frame.getId();
+            p = frame.getPacket();
+        } catch(Exception e) {
+            // Note: We're aiming to be fault tolerant here, so we're silently ignoring incorrect packets
+            // hoping that the server will eventually send something that makes sense.
+            log.warning("Received a malformed packet.");
+            e.printStackTrace();
+            return true;
+        }
 
-            try {
-                p = (Packet) message;
-            } catch(Exception e) {
-                // Note: We're aiming to be fault tolerant here, so we're silently ignoring incorrect packets
-                // hoping that the server will eventually send something that makes sense.
-                log.warning("Received a malformed packet.");
-                e.printStackTrace();
-                return true;
-            }
+        switch(p.getType()) {
+            case PACKET_HANDSHAKE: {
+                // Handshake requires us to share our system specs.
+                // Query them now.
+                String jvmVersion = System.getProperty("java.version");
+                String jvmVendor = System.getProperty("java.vendor");
+                long maxMemory = Runtime.getRuntime().maxMemory() / 1024;
+                long maxStorage = new File(".").getUsableSpace() / 1000;
+                int availableProcessors = Runtime.getRuntime().availableProcessors();
+
+                // A server speaking another protocol version would misread everything we send.
+                if(((PacketHandshake) p).getProtocolVersion() != Version.PROTOCOL) {
+                    log.severe("Protocol version mismatch; got " + Version.PROTOCOL
+                            + ", remote server has " + ((PacketHandshake) p).getProtocolVersion());
+                    return false;
+                }
 
-            switch(p.getType()) {
-                case PACKET_HANDSHAKE: {
-                    // Handshake requires us to share our system specs.
-                    // Query them now.
-                    String jvmVersion = System.getProperty("java.version");
-                    String jvmVendor = System.getProperty("java.vendor");
-                    long maxMemory = Runtime.getRuntime().maxMemory() / 1024;
-                    long maxStorage = new File(".").getUsableSpace() / 1000;
-                    int availableProcessors = Runtime.getRuntime().availableProcessors();
-
-                    // Check the server and client JVM version.
-                    // Differences may result in strange behavior, so resolve that now.
-
-                    // This is a single time check, so it's acceptable to fail now, as it's
-                    // too early on to maintain connection at all costs.
-                    if(!jvmVersion.equalsIgnoreCase(((PacketHandshake) p).jvmVersion())) {
-                        log.severe("JVM version mismatch; got " + jvmVersion
-                                + ", remote server has " + ((PacketHandshake) p).jvmVersion());
-                        return false;
-                    }
+                // Check the server and client JVM version.
+                // Differences may result in strange behavior, so resolve that now.
 
-                    // JVM vendor mismatch.
-                    // This one is treated leniently and it may or may not cause problems in the future.
-                    // If something bad happens, smack a `return false;` there and s/warning/severe/;
-                    if(!jvmVendor.equalsIgnoreCase(((PacketHandshake) p).jvmVendor())) {
-                        log.warning("JVM vendor mismatch; got " + jvmVendor
-                                + ", remote server has " + ((PacketHandshake) p).jvmVendor());
-                    }
+                // This is a single time check, so it's acceptable to fail now, as it's
+                // too early on to maintain connection at all costs.
+                if(!jvmVersion.equalsIgnoreCase(((PacketHandshake) p).jvmVersion())) {
+                    log.severe("JVM version mismatch; got " + jvmVersion
+                            + ", remote server has " + ((PacketHandshake) p).jvmVersion());
+                    return false;
+                }
+
+                // JVM vendor mismatch.
+                // This one is treated leniently and it may or may not cause problems in the future.
+                // If something bad happens, smack a `return false;` there and s/warning/severe/;
+                if(!jvmVendor.equalsIgnoreCase(((PacketHandshake) p).jvmVendor())) {
+                    log.warning("JVM vendor mismatch; got " + jvmVendor
+                            + ", remote server has " + ((PacketHandshake) p).jvmVendor());
+                }
 
-                    // Poke back the handshake packet.
-                    out.writeObject(
-                            new PacketHandshake(jvmVersion, jvmVendor, maxMemory, maxStorage, availableProcessors));
-                    out.flush();
+                // Poke back the handshake packet.
+                // Accept the compression threshold proposed by the server, unless we don't want compression.
+                compressionThreshold = compression
+                        ? ((PacketHandshake) p).getCompressionThreshold()
+                        : FrameCodec.COMPRESSION_DISABLED;
 
-                    // Log the operation
-                    log.info("Handshake requested.");
+                // Present the session we've had before the connection was lost, or adopt the proposed one.
+                if(session == null)
+                    session = ((PacketHandshake) p).getSession();
 
-                    break;
+                // Tell the server which requests we're still working on or have answered while disconnected,
+                // so that it keeps waiting for them.
+                Set<Long> inflight = new HashSet<>(running.keySet());
+                inflight.addAll(unloads.pending());
+
+                synchronized(replyLock) {
+                    inflight.addAll(heldBack.keySet());
+                    inflight.addAll(dropped);
                 }
 
-                case PACKET_INJECT: {
-                    // Inject (resolve) a class object which logically belongs to a given module.
-                    PacketInject packet = (PacketInject) p;
+                // Advertise the bytecode we already hold, so that the server doesn't send it again.
+                // The handshake is sent right away - the other responses wait for the session to be resumed.
+                send(out, id, new PacketHandshake(jvmVersion, jvmVendor, maxMemory, maxStorage,
+                        availableProcessors, slots, store.hashes(), compressionThreshold, session,
+                        modules.keySet(), inflight));
+
+                // Log the operation
+                log.info("Handshake requested.");
+
+                break;
+            }
+
+            case PACKET_KEEPALIVE: {
+                // A keepalive packet. The server is expected to send it periodically to make
+                // sure the connection is stable and that the client is still connected.
+                // We measure the time between keepalive packets.
+
+                log.info("[" + (System.currentTimeMillis() - beat) + "ms] Heartbeat.");
+                beat = System.currentTimeMillis();
+
+                // Echo back the same packet, ahead of the responses waiting to be sent.
+                control(id, new PacketKeepalive());
+                break;
+            }
+
+            case PACKET_CANCEL: {
+                // The server has stopped waiting for a request. Nothing is sent in reply.
+                cancel(((PacketCancel) p).getTarget());
+                break;
+            }
+
+            case PACKET_TELEMETRY: {
+                // Report the load of the client. Answered right here, so that it's answered even if the
+                // worker pool is busy.
+                Runtime rt = Runtime.getRuntime();
 
-                    String name = packet.getName();
+                control(id, new PacketTelemetry(running.size(), workers.getQueue().size(), completed.get(),
+                        (rt.totalMemory() - rt.freeMemory()) / 1024, rt.maxMemory() / 1024,
+                        ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage(),
+                        ManagementFactory.getRuntimeMXBean().getUptime()));
+                break;
+            }
 
+            case PACKET_RESUME: {
+                // The server has bound the connection to our session. Nothing is sent in reply.
+                resume(out, ((PacketResume) p).getPending());
+                break;
+            }
+
+            case PACKET_GOODBYE: {
+                // Disconnection: Quit the client and log the message.
+                log.info("The server has requested disconnection.");
+                return false;
+            }
+
+            default: {
+                // Everything else is handled on the data lane, in the order it has arrived. A chunk is registered
+                // right away, so that it can be cancelled, and is reported as in flight, while it's waiting.
+                if(p.getType() == PacketType.PACKET_EXECUTE || p.getType() == PacketType.PACKET_EXECUTE_BATCH)
+                    running.put(id, new ConcurrentLinkedQueue<>());
+
+                lane.execute(() -> {
                     try {
-                        Class<?> data = packet.getClassData();
-
-                        // If the module hasn't been registered yet, register it.
-                        if(!modules.containsKey(packet.getModule()))
-                            modules.put(packet.getModule(), new ClassInjector());
-
-                        // Register the class via module's classloader.
-                        modules.get(packet.getModule()).inject(data);
-
-                        log.info("Successfully injected " + name);
-                        out.writeBoolean(true);
-                        out.flush();
-                    } catch(Exception e) {
-                        // If something bad happened, report back to the server.
-                        log.warning("Attempt scheduled by the remote server to load class `" +
-                                name + "' has failed.");
-                        e.printStackTrace();
-                        out.writeBoolean(false);
-                        out.flush();
+                        handle(id, p);
+                    } catch(IOException e) {
+                        // The message loop will notice the broken connection too. The response is held back.
+                        log.severe("I/O exception while sending a response.");
                     }
+                });
 
-                    break;
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Handle a packet of the data lane - anything that isn't answered right away by the message loop. Runs on
+     * the data lane, one packet at a time, so that storing data or defining classes doesn't hold up the
+     * keepalives, and the packets are still handled in the order they have arrived.
+     *
+     * @param id ID of the request.
+     * @param p The packet.
+     * @throws IOException if the response couldn't be sent. It's held back then.
+     */
+    private static void handle(long id, Packet p) throws IOException {
+        switch(p.getType()) {
+            case PACKET_INJECT: {
+                // Define a class (and the classes it depends on) which logically belongs to a given module.
+                PacketInject packet = (PacketInject) p;
+
+                String name = packet.getName();
+
+                try {
+                    // If the module hasn't been registered yet, register it.
+                    if(!modules.containsKey(packet.getModule()))
+                        modules.put(packet.getModule(), new ClassInjector(store));
+
+                    // Define the class via module's classloader.
+                    Class<?> c = define(packet.getCode(), modules.get(packet.getModule()));
+                    classes.put(packet.getCode().getDigest(), c);
+
+                    log.info("Successfully injected " + name);
+                    reply(id, new PacketResponse(true, null));
+                } catch(Exception | LinkageError e) {
+                    // If something bad happened, report back to the server.
+                    log.warning("Attempt scheduled by the remote server to load class `" +
+                            name + "' has failed.");
+                    e.printStackTrace();
+                    reply(id, new PacketResponse(false, e));
                 }
 
-                case PACKET_KEEPALIVE: {
-                    // A keepalive packet. The server is expected to send it periodically to make
-                    // sure the connection is stable and that the client is still connected.
-                    // We measure the time between keepalive packets.
+                break;
+            }
 
-                    log.info("[" + (System.currentTimeMillis() - beat) + "us] Heartbeat.");
-                    beat = System.currentTimeMillis();
+            case PACKET_EXECUTE: {
+                // Instantiate a chunk class and process the input data sent along with it.
+                PacketExecute packet = (PacketExecute) p;
+                Queue<Future<?>> tasks = running.get(id);
 
-                    // Echo back the same packet.
-                    out.writeObject(new PacketKeepalive());
-                    out.flush();
+                // The chunk has been cancelled while it was waiting.
+                if(tasks == null)
+                    break;
+
+                String name = packet.getName();
+                byte[] data;
+
+                try {
+                    data = payloads.resolve(Collections.singletonList(packet.getData())).get(0);
+                } catch(MissingPayloadException e) {
+                    // The server sends the input in full and retries.
+                    reply(id, tasks, new PacketResponse(false, e));
                     break;
                 }
 
-                case PACKET_GOODBYE: {
-                    // Disconnection: Quit the client and log the message.
-                    log.info("The server has requested disconnection.");
-                    return false;
+                try {
+                    // Reuse the class if it's already defined (e.g. it has been injected into a module).
+                    Class<?> c = resolve(packet.getCode(), packet.isIsolated());
+
+                    // Instantiate the class on the clientside.
+                    CodeChunk chunk = (CodeChunk) c.getDeclaredConstructor().newInstance();
+
+                    // Log a message to indicate successful instantiation.
+                    log.info("Processing chunk: " + name);
+
+                    // The result is sent by the worker pool. It's the only reply to the request.
+                    submit(id, tasks, () -> process(id, chunk, data));
+                } catch(MissingBytecodeException e) {
+                    // The server sends the bytecode and retries.
+                    reply(id, tasks, new PacketResponse(false, e));
+                } catch(Exception | LinkageError e) {
+                    // If something bad happened, tell server about it.
+                    log.warning("Attempt scheduled by the remote server to instantiate class `" +
+                            name + "' has failed.");
+                    reply(id, tasks, new PacketResponse(false, new ChunkInstantiationException(name, e)));
                 }
 
-                case PACKET_EXECUTE: {
-                    // Execute an already injected class.
-                    PacketExecute packet = (PacketExecute) p;
+                break;
+            }
 
-                    String name = packet.getName();
+            case PACKET_EXECUTE_BATCH: {
+                // Execute a chunk class for many inputs. The inputs are processed in parallel.
+                PacketExecuteBatch packet = (PacketExecuteBatch) p;
+                Queue<Future<?>> tasks = running.get(id);
 
-                    try {
-                        // Instantiate the class on the clientside.
-                        Class<?> c = packet.getClassData();
-                        CodeChunk chunk = (CodeChunk) c.getDeclaredConstructor().newInstance();
-
-                        // Log a message to indicate successful instantiation.
-                        log.info("Processing chunk: " + name);
-
-                        // Tell the server about successful operation.
-                        out.writeBoolean(true);
-                        out.flush();
-
-                        // Read the data
-                        Serializable obj = (Serializable) in.readObject();
-
-                        // Acknowledge reading the data
-                        log.info("Received data.");
-
-                        // Start processing
-                        long start = System.currentTimeMillis();
-                        Serializable result = chunk.process(obj);
-                        long end = System.currentTimeMillis();
-
-                        // Tell the server about successful processing.
-                        out.writeBoolean(true);
-                        out.flush();
-
-                        log.info("Operation finished in " + (end - start) + "ms.");
-
-                        // Send back the success message.
-                        out.writeObject(result);
-                        out.flush();
-                    } catch(Exception e) {
-                        // If something bad happened, tell server about it.
-                        // TODO: If an I/O exception occurs, then we leave the transmission in a bogus state.
-                        log.warning("Attempt scheduled by the remote server to execute class `" +
-                                name + "' has failed.");
-                        out.writeBoolean(false);
-                        out.writeObject(e);
-                        out.flush();
-                    }
+                // The batch has been cancelled while it was waiting.
+                if(tasks == null)
+                    break;
 
+                String name = packet.getName();
+                List<byte[]> inputs;
+                Class<?> c;
+
+                try {
+                    inputs = payloads.resolve(packet.getInputs());
+                } catch(MissingPayloadException e) {
+                    // The server sends the inputs in full and retries.
+                    reply(id, tasks, new PacketResponse(false, e));
                     break;
                 }
 
-                case PACKET_GC: {
-                    // The server may request a GC cycle. This can happen for multiple reasons,
-                    // one of which may be module unlinking. To ensure classes are no longer resolved,
-                    // the classloader has to be unloaded, and triggering the garbage collection is the only
-                    // way to do that.
-                    log.info("GC cycle requested.");
-                    System.gc();
+                try {
+                    c = resolve(packet.getCode(), false);
+
+                    if(!CodeChunk.class.isAssignableFrom(c))
+                        throw new ClassCastException(name + " is not a CodeChunk.");
+                } catch(MissingBytecodeException e) {
+                    // The server sends the bytecode and retries.
+                    reply(id, tasks, new PacketResponse(false, e));
+                    break;
+                } catch(Exception | LinkageError e) {
+                    // The whole batch fails, as none of the inputs can be processed.
+                    log.warning("Attempt scheduled by the remote server to load class `" +
+                            name + "' has failed.");
+                    reply(id, tasks, new PacketResponse(false, new ChunkInstantiationException(name, e)));
                     break;
                 }
 
-                case PACKET_UNLINK: {
-                    // Unlinking all classes from a given module.
-                    // Note this may not take effect immediately.
-                    String moduleName = ((PacketUnlink) p).getName();
+                log.info("Processing a batch of " + inputs.size() + " inputs: " + name);
+
+                processBatch(id, tasks, c, inputs);
+                break;
+            }
 
-                    log.warning("Requested to unlink all classes from " + moduleName);
+            case PACKET_STORE: {
+                // Store data for the chunks to read, or remove it.
+                PacketStore packet = (PacketStore) p;
 
-                    // Check if a given module exists. Write back true/false depending on that.
-                    if(modules.containsKey(moduleName)) {
-                        modules.remove(moduleName);
-                        out.writeBoolean(true);
-                    } else {
-                        out.writeBoolean(false);
-                    }
+                if(packet.getValue() != null)
+                    cache.put(packet.getKey(), packet.getValue());
+                else
+                    cache.remove(packet.getKey());
 
-                    break;
-                }
+                // Tell the server which keys it can't count on anymore.
+                reply(id, new PacketResponse(true, new ArrayList<>(cache.drainDropped())));
+                break;
             }
 
-            return true;
-        } catch(ClassNotFoundException e) {
-            // That one we're treating leniently - just loop again.
-            log.warning("Received object of unknown type.");
-            e.printStackTrace();
-            return true;
-        } catch(IOException e) {
-            // I/O exception usually means things are beyond recognition and it's better to just quit.
-            log.severe("I/O exception.");
-            e.printStackTrace();
-            return false;
+            case PACKET_GC: {
+                // The server may request a GC cycle. This can happen for multiple reasons,
+                // one of which may be module unlinking. To ensure classes are no longer resolved,
+                // the classloader has to be unloaded, and triggering the garbage collection is the only
+                // way to do that.
+                log.info("GC cycle requested.");
+                System.gc();
+                break;
+            }
+
+            case PACKET_UNLINK: {
+                // Unlinking all classes from a given module.
+                // Note this doesn't take effect until the garbage collector gets to the module.
+                String moduleName = ((PacketUnlink) p).getName();
+
+                log.warning("Requested to unlink all classes from " + moduleName);
+
+                // Check if a given module exists. The unload is reported by the unload tracker.
+                if(modules.containsKey(moduleName)) {
+                    ClassInjector injector = modules.remove(moduleName);
+
+                    // Forget the classes defined by the module, and the data decoded with them, so that
+                    // they can be unloaded.
+                    classes.values().removeIf(c -> c.getClassLoader() == injector);
+                    cache.forget(injector);
+
+                    unloads.track(id, moduleName, injector);
+                } else {
+                    reply(id, new PacketResponse(false, null));
+                }
+
+                break;
+            }
         }
     }
 
@@ -263,29 +866,71 @@ public class Start {
             System.exit(1);
         }
 
-        try {
+        unloads = new UnloadTracker((id, module) -> {
+            try {
+                reply(id, new PacketUnloaded(module));
+            } catch(IOException e) {
+                // The message loop will notice the broken connection too. The response is held back.
+                log.severe("I/O exception while reporting an unload.");
+            }
+        });
+
+        long backoff = MIN_BACKOFF;
+        long lost = System.currentTimeMillis();
+
+        while(true) {
             // Open the connection and I/O streams.
-            // TODO: Wrap a GZIP compression over that.
-            Socket connection = new Socket(args[0], Integer.parseInt(args[1]));
-            ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-
-            beat = System.currentTimeMillis();
-
-            // Process the message loop.
-            while(messageLoop(out, in))
-                ;
-
-            // When messageLoop returns false, then clean up.
-            out.close();
-            in.close();
-            connection.close();
-            log.info("Quitting!");
-        } catch (UnknownHostException e) {
-            log.severe("Unknown host: " + args[0] + ":" + args[1]);
-        } catch (IOException e) {
-            log.severe("I/O exception.");
-            e.printStackTrace();
+            // Compression is negotiated in the handshake and applied to the individual frames.
+            try(Socket connection = new Socket(args[0], Integer.parseInt(args[1]))) {
+                connection.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+
+                beat = System.currentTimeMillis();
+                backoff = MIN_BACKOFF;
+
+                try {
+                    // Process the message loop.
+                    while(messageLoop(out, in))
+                        ;
+                } finally {
+                    // Hold the responses back until the connection is reestablished.
+                    synchronized(replyLock) {
+                        link = null;
+                    }
+
+                    lost = System.currentTimeMillis();
+                }
+
+                // When messageLoop returns false, then clean up.
+                log.info("Quitting!");
+                break;
+            } catch(UnknownHostException e) {
+                log.severe("Unknown host: " + args[0] + ":" + args[1]);
+                break;
+            } catch(IOException e) {
+                log.severe("I/O exception: " + e.getMessage());
+            }
+
+            // Keep trying to reconnect for a while, backing off exponentially, so that the session is resumed.
+            if(System.currentTimeMillis() - lost + backoff > reconnectTimeout) {
+                log.severe("Couldn't reconnect to the server, giving up.");
+                break;
+            }
+
+            log.info("Reconnecting in " + backoff + "ms.");
+
+            try {
+                // Jitter the delay, so that the clients cut off at once don't reconnect all at once.
+                Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            } catch(InterruptedException e) {
+                break;
+            }
+
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
         }
+
+        lane.shutdownNow();
+        workers.shutdownNow();
     }
 }
@@ -0,0 +1,134 @@
+package incenso.client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the class loaders of unlinked modules until they're actually unloaded by the garbage collector,
+ * and reports each unload as it happens.
+ *
+ * Unloading is left to the regular garbage collection. A collection is requested explicitly only if there
+ * are loaders waiting to be unloaded and the Metaspace usage crosses a threshold, given in bytes by the
+ * `incenso.metaspace.threshold' property (by default 75% of the Metaspace limit, or 128MiB if it's unlimited).
+ */
+class UnloadTracker {
+    private static Logger log = Logger.getLogger("Incenso");
+
+    /**
+     * Called on the tracker thread when a module has been unloaded.
+     */
+    interface Listener {
+        void unloaded(long id, String module);
+    }
+
+    /**
+     * A phantom reference to the loader of an unlinked module.
+     */
+    private static class Unload extends PhantomReference<ClassLoader> {
+        final long id;
+        final String module;
+
+        Unload(ClassLoader loader, ReferenceQueue<ClassLoader> queue, long id, String module) {
+            super(loader, queue);
+            this.id = id;
+            this.module = module;
+        }
+    }
+
+    /**
+     * How often the Metaspace usage is checked, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * The minimum amount of milliseconds between two collections requested by the tracker.
+     */
+    private static final long GC_INTERVAL = 10000;
+
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+
+    /**
+     * The references to the loaders waiting to be unloaded. The references have to be reachable,
+     * otherwise they'd never be enqueued.
+     */
+    private final ConcurrentHashMap<Unload, Boolean> pending = new ConcurrentHashMap<>();
+
+    private final MemoryPoolMXBean metaspace = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(x -> x.getName().equals("Metaspace")).findFirst().orElse(null);
+
+    private final long threshold;
+
+    private final Listener listener;
+
+    private long lastGC = 0;
+
+    /**
+     * Create a tracker and start its thread.
+     * @param listener Notified about every unloaded module.
+     */
+    UnloadTracker(Listener listener) {
+        this.listener = listener;
+
+        long max = metaspace != null ? metaspace.getUsage().getMax() : -1;
+        threshold = Long.getLong("incenso.metaspace.threshold", max > 0 ? max / 4 * 3 : 128L * 1024 * 1024);
+
+        Thread thread = new Thread(this::run, "Incenso unload tracker.");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start tracking the loader of an unlinked module. Nothing may reference the loader or its classes
+     * anymore, otherwise it's never unloaded.
+     * @param id ID of the request which unlinked the module.
+     * @param module The module name.
+     * @param loader The loader of the module.
+     */
+    void track(long id, String module, ClassLoader loader) {
+        pending.put(new Unload(loader, queue, id, module), true);
+    }
+
+    /**
+     * @return IDs of the unlink requests whose modules haven't been unloaded yet.
+     */
+    Set<Long> pending() {
+        Set<Long> ids = new HashSet<>();
+
+        for(Unload u : pending.keySet())
+            ids.add(u.id);
+
+        return ids;
+    }
+
+    private void run() {
+        while(true) {
+            Reference<? extends ClassLoader> ref;
+
+            try {
+                ref = queue.remove(POLL_INTERVAL);
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            if(ref != null) {
+                Unload unload = (Unload) ref;
+                pending.remove(unload);
+
+                log.info("Module " + unload.module + " has been unloaded.");
+                listener.unloaded(unload.id, unload.module);
+            } else if(!pending.isEmpty() && metaspace != null && metaspace.getUsage().getUsed() > threshold
+                    && System.currentTimeMillis() - lastGC > GC_INTERVAL) {
+                log.info("Metaspace usage over the threshold, requesting a GC cycle.");
+                lastGC = System.currentTimeMillis();
+                System.gc();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package incenso.common;
+
+import java.io.Serializable;
+
+/**
+ * The environment a chunk is processed in, on the client.
+ *
+ * @see CodeChunk#process(Serializable, ChunkContext)
+ */
+public interface ChunkContext {
+    /**
+     * Read the data stored on the client by the server under a given key. The data is deserialized with the
+     * class loader of the chunk, and the same instance is shared by the chunks reading it, so it must not be
+     * modified.
+     *
+     * @param key The key.
+     * @return The data, or null if the client doesn't hold it.
+     */
+    Serializable get(String key);
+}
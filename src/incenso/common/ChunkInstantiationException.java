@@ -0,0 +1,11 @@
+package incenso.common;
+
+/**
+ * Thrown by the client when a chunk class can't be loaded or instantiated, as opposed to the chunk failing
+ * while processing its input. The cause is the original error.
+ */
+public class ChunkInstantiationException extends Exception {
+    public ChunkInstantiationException(String name, Throwable cause) {
+        super("Couldn't instantiate " + name + ".", cause);
+    }
+}
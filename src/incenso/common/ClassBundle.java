@@ -0,0 +1,157 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A class bundle - the bytecode of a class together with the bytecode of the classes it depends on.
+ * Every class is identified by the SHA-256 hash of its bytecode, so the bytecode itself can be left out
+ * if the receiving side is known to already hold it.
+ *
+ * The first entry is always the root class - the one the bundle has been created for.
+ */
+public class ClassBundle {
+    /**
+     * A single class in the bundle.
+     */
+    public static class Entry {
+        private String name;
+        private String hash;
+        private byte[] bytecode;
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return The bytecode, or null if it has been left out.
+         */
+        public byte[] getBytecode() {
+            return bytecode;
+        }
+
+        public Entry(String name, String hash, byte[] bytecode) {
+            this.name = name;
+            this.hash = hash;
+            this.bytecode = bytecode;
+        }
+    }
+
+    private List<Entry> entries;
+
+    public ClassBundle(List<Entry> entries) {
+        if(entries.isEmpty())
+            throw new IllegalArgumentException("A class bundle needs at least the root class.");
+
+        this.entries = entries;
+    }
+
+    /**
+     * @return The name of the root class.
+     */
+    public String getName() {
+        return entries.get(0).getName();
+    }
+
+    /**
+     * @return The hash of the root class.
+     */
+    public String getHash() {
+        return entries.get(0).getHash();
+    }
+
+    /**
+     * Compute the digest identifying the whole bundle - the names and the hashes of all the classes in it.
+     * Unlike the hash of the root class, it changes whenever any of the classes changes, so it's the one
+     * the classes defined from a bundle are cached by.
+     * @return Hex-encoded SHA-256 digest of the bundle.
+     */
+    public String getDigest() {
+        // The root class comes first; the order of the others doesn't matter.
+        List<Entry> sorted = new ArrayList<>(entries.subList(1, entries.size()));
+        sorted.sort(Comparator.comparing(Entry::getName));
+        sorted.add(0, entries.get(0));
+
+        StringBuilder sb = new StringBuilder();
+
+        for(Entry e : sorted)
+            sb.append(e.getName()).append('\0').append(e.getHash()).append('\n');
+
+        return hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Create a copy of this bundle, leaving out the bytecode of the classes with given hashes.
+     * @param known Decides whether the receiving side already holds the bytecode with a given hash.
+     * @return The stripped bundle.
+     */
+    public ClassBundle strip(Predicate<String> known) {
+        List<Entry> stripped = new ArrayList<>(entries.size());
+
+        for(Entry e : entries)
+            stripped.add(known.test(e.getHash()) ? new Entry(e.getName(), e.getHash(), null) : e);
+
+        return new ClassBundle(stripped);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(entries.size());
+
+        for(Entry e : entries) {
+            out.writeUTF(e.getName());
+            FrameCodec.writeHash(out, e.getHash());
+            FrameCodec.writeBytes(out, e.getBytecode());
+        }
+    }
+
+    public static ClassBundle read(DataInput in) throws IOException {
+        int count = in.readInt();
+
+        if(count <= 0)
+            throw new IOException("Invalid class bundle size: " + count + ".");
+
+        List<Entry> entries = new ArrayList<>(Math.min(count, 1024));
+
+        for(int i = 0; i < count; i++)
+            entries.add(new Entry(in.readUTF(), FrameCodec.readHash(in), FrameCodec.readBytes(in)));
+
+        return new ClassBundle(entries);
+    }
+
+    /**
+     * Compute the hash used to identify a given bytecode.
+     * @param bytecode The bytecode.
+     * @return Hex-encoded SHA-256 hash of the bytecode.
+     */
+    public static String hash(byte[] bytecode) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytecode);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+
+            for(byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+            return sb.toString();
+        } catch(NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -18,4 +18,17 @@ public interface CodeChunk extends Serializable {
      * @return Operation output
      */
     Serializable process(Serializable data);
+
+    /**
+     * Perform an operation with access to the environment of the client, e.g. the data stored on it.
+     * This is the method called by the client - by default, it ignores the context and calls
+     * <code>process(data)</code>, so chunks which need the context should override it as well.
+     *
+     * @param data Operation input
+     * @param context The environment of the client.
+     * @return Operation output
+     */
+    default Serializable process(Serializable data, ChunkContext context) {
+        return process(data);
+    }
 }
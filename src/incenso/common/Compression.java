@@ -0,0 +1,141 @@
+package incenso.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame payload compression. Uses Deflate with a preset dictionary made of the strings which commonly appear
+ * in Incenso traffic - serialization stream headers, names of the frequently serialized JDK classes and the
+ * strings found in every class file - so that even small frames compress well.
+ *
+ * Compressed data is prefixed with the length of the uncompressed data.
+ *
+ * @see FrameCodec
+ */
+public class Compression {
+    /**
+     * The preset dictionary. Deflate favours short distances, so the most common strings come last.
+     */
+    private static final byte[] DICTIONARY = dictionary(
+            "java.util.HashMap", "loadFactorI", "thresholdxp", "java.util.LinkedList",
+            "java.lang.Boolean", "java.lang.Double", "java.lang.Character",
+            "suppressedExceptionst", "Ljava/util/List;", "java.util.Collections$UnmodifiableList",
+            "java.util.Collections$EmptyList", "[Ljava.lang.StackTraceElement;",
+            "java.lang.StackTraceElement", "declaringClassLoaderName", "declaringClass", "methodName",
+            "moduleName", "moduleVersion", "fileName", "lineNumberI", "formatI", "app",
+            "java.lang.Throwable", "detailMessaget", "causet", "stackTracet", "Ljava/lang/Throwable;",
+            "java.lang.Exception", "java.lang.RuntimeException", "java.io.IOException",
+            "LocalVariableTable", "StackMapTable", "LineNumberTable", "SourceFile", "InnerClasses",
+            "NestMembers", "NestHost", "BootstrapMethods", "Exceptions", "Signature",
+            "java/lang/invoke/LambdaMetafactory", "java/lang/invoke/MethodHandles$Lookup",
+            "java/lang/StringBuilder", "append", "toString", "()Ljava/lang/String;", "valueOf",
+            "java/lang/Integer", "intValue", "java/lang/Object", "<init>", "()V", "Code", "this",
+            "incenso/common/CodeChunk", "java/io/Serializable", "Ljava/io/Serializable;",
+            "(Ljava/io/Serializable;)Ljava/io/Serializable;", "process", "java/lang/String", "Ljava/lang/String;",
+            "java.util.ArrayList", "elementData", "sizexp", "java.lang.Long", "java.lang.Number",
+            "java.lang.Integer", "valuexr", "java.lang.String", "incenso.", "sr", "t", "q~", "xp"
+    );
+
+    private static byte[] dictionary(String... words) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for(String w : words)
+            out.writeBytes(w.getBytes(StandardCharsets.UTF_8));
+
+        // Java serialization stream header, present at the start of every serialized user payload.
+        out.writeBytes(new byte[] { (byte) 0xAC, (byte) 0xED, 0x00, 0x05, 0x73, 0x72 });
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Compress data.
+     * @param data The data.
+     * @param offset Offset of the data in the array.
+     * @param length Length of the data.
+     * @return The compressed data, prefixed with the uncompressed length.
+     */
+    public static byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater();
+
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            byte[] buffer = new byte[Math.min(Math.max(length, 64), 64 * 1024)];
+
+            out.write(length >>> 24);
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+
+            while(!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress data compressed by <code>compress</code>.
+     * @param data The compressed data.
+     * @param offset Offset of the compressed data in the array.
+     * @param length Length of the compressed data.
+     * @return The uncompressed data.
+     * @throws IOException if the data is malformed.
+     */
+    public static byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        if(length < 4)
+            throw new IOException("Truncated compressed data.");
+
+        int size = (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+
+        if(size < 0 || size > FrameCodec.MAX_FRAME_LENGTH)
+            throw new IOException("Invalid uncompressed length: " + size + ".");
+
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(data, offset + 4, length - 4);
+
+            // The buffer grows as the data is inflated, up to the declared length, so that a few bytes declaring
+            // a huge length don't make us allocate it up front.
+            byte[] result = new byte[Math.min(size, Math.max(64, (length - 4) * 4))];
+            int n = 0;
+
+            while(n < size) {
+                if(n == result.length)
+                    result = Arrays.copyOf(result, (int) Math.min(size, 2L * result.length));
+
+                int read = inflater.inflate(result, n, result.length - n);
+
+                if(read == 0) {
+                    if(inflater.needsDictionary())
+                        inflater.setDictionary(DICTIONARY);
+                    else if(inflater.finished() || inflater.needsInput())
+                        throw new IOException("Truncated compressed data.");
+                }
+
+                n += read;
+            }
+
+            return result;
+        } catch(DataFormatException e) {
+            throw new IOException("Malformed compressed data.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package incenso.common;
+
+/**
+ * A frame - the unit of transmission between the server and the client.
+ * Wraps a packet together with the ID of the request it belongs to, so that multiple requests can be
+ * in flight on a single connection and the responses can be matched with the requests that caused them.
+ *
+ * Responses always carry the ID of the request they answer.
+ *
+ * @see FrameCodec
+ */
+public class Frame {
+    private long id;
+    private Packet packet;
+
+    public long getId() {
+        return id;
+    }
+
+    public Packet getPacket() {
+        return packet;
+    }
+
+    public Frame(long id, Packet packet) {
+        this.id = id;
+        this.packet = packet;
+    }
+}
@@ -0,0 +1,335 @@
+package incenso.common;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary frame format used by the protocol.
+ *
+ * Every frame consists of:
+ * <ul>
+ *     <li>The length of the rest of the frame (varint).</li>
+ *     <li>The packet type (byte) - the code of the PacketType in the low 7 bits, and the flags describing
+ *     frame-level transformations of the payload in the high bit.</li>
+ *     <li>The request ID (varint).</li>
+ *     <li>The payload - the packet, as encoded by its <code>write</code> method.</li>
+ * </ul>
+ *
+ * Varints are unsigned LEB128 - 7 bits per byte, least significant group first, with the high bit set on every
+ * byte but the last. A keepalive thus takes 3 bytes as long as the request IDs are below 128, and 5 bytes up to
+ * about two million requests.
+ *
+ * Packets are encoded by hand. Java serialization is only used for the user data the packets carry.
+ * The layout of the packets is versioned as a whole by <code>Version.PROTOCOL</code>, which the peers
+ * compare in the handshake.
+ *
+ * Payloads larger than the compression threshold negotiated in the handshake are compressed, as long as
+ * that makes them smaller. Compressed frames have the <code>FLAG_COMPRESSED</code> flag set. Decoding
+ * compressed frames is always supported.
+ *
+ * @see Frame
+ * @see Packet
+ */
+public class FrameCodec {
+    /**
+     * Size of the shortest frame header following the length: the type and a single-byte request ID.
+     */
+    public static final int MIN_HEADER_LENGTH = 1 + 1;
+
+    /**
+     * Frames longer than that are rejected, since they're most likely the result of a corrupted stream.
+     */
+    public static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+    /**
+     * The bits of the type byte holding the code of the PacketType.
+     */
+    public static final int TYPE_MASK = 0x7F;
+
+    /**
+     * The payload is compressed.
+     * @see Compression
+     */
+    public static final int FLAG_COMPRESSED = 0x80;
+
+    /**
+     * Compression threshold meaning the compression is disabled.
+     */
+    public static final int COMPRESSION_DISABLED = -1;
+
+    /**
+     * Encode a frame, without compressing it.
+     * @param frame The frame.
+     * @return The encoded frame, including the length.
+     * @throws IOException if the packet can't be encoded.
+     */
+    public static byte[] encode(Frame frame) throws IOException {
+        return encode(frame, COMPRESSION_DISABLED);
+    }
+
+    /**
+     * Encode a frame.
+     * @param frame The frame.
+     * @param compressionThreshold Payloads larger than that many bytes are compressed.
+     *                             <code>COMPRESSION_DISABLED</code> disables the compression.
+     * @return The encoded frame, including the length.
+     * @throws IOException if the packet can't be encoded.
+     */
+    public static byte[] encode(Frame frame, int compressionThreshold) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(frame.getPacket().getType().getCode());
+        writeVarLong(out, frame.getId());
+
+        int header = out.size();
+
+        frame.getPacket().write(out);
+        out.flush();
+
+        byte[] body = bytes.toByteArray();
+
+        if(compressionThreshold != COMPRESSION_DISABLED && body.length - header > compressionThreshold) {
+            byte[] compressed = Compression.compress(body, header, body.length - header);
+
+            // Incompressible payloads are sent as they are.
+            if(compressed.length < body.length - header) {
+                byte[] result = new byte[header + compressed.length];
+                System.arraycopy(body, 0, result, 0, header);
+                System.arraycopy(compressed, 0, result, header, compressed.length);
+                result[0] |= FLAG_COMPRESSED;
+                body = result;
+            }
+        }
+
+        int prefix = varIntSize(body.length);
+        byte[] data = new byte[prefix + body.length];
+        int length = body.length;
+
+        for(int i = 0; i < prefix - 1; i++, length >>>= 7)
+            data[i] = (byte) (length & 0x7F | 0x80);
+
+        data[prefix - 1] = (byte) length;
+        System.arraycopy(body, 0, data, prefix, body.length);
+        return data;
+    }
+
+    /**
+     * Decode a frame.
+     * @param body The frame without the length.
+     * @return The decoded frame.
+     * @throws IOException if the frame is malformed.
+     */
+    public static Frame decode(byte[] body) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+        DataInputStream in = new DataInputStream(bytes);
+
+        int first = in.readUnsignedByte();
+        int type = first & TYPE_MASK;
+        long id = readVarLong(in);
+        int header = body.length - bytes.available();
+
+        if((first & FLAG_COMPRESSED) != 0)
+            in = new DataInputStream(new ByteArrayInputStream(
+                    Compression.decompress(body, header, body.length - header)));
+
+        PacketType packetType = PacketType.fromCode(type);
+
+        if(packetType == null)
+            throw new ProtocolException("Unknown packet type: " + type + ".");
+
+        return new Frame(id, read(packetType, in));
+    }
+
+    /**
+     * Read the request ID of a frame without decoding it, e.g. to route the frame before it's decompressed.
+     * @param body The frame without the length.
+     * @return The request ID.
+     * @throws ProtocolException if the request ID is malformed.
+     */
+    public static long id(byte[] body) throws ProtocolException {
+        long id = 0;
+
+        for(int i = 1, shift = 0; i < body.length && shift < 64; i++, shift += 7) {
+            id |= (long) (body[i] & 0x7F) << shift;
+
+            if((body[i] & 0x80) == 0)
+                return id;
+        }
+
+        throw new ProtocolException("Malformed request ID.");
+    }
+
+    /**
+     * Write a frame to a stream. Doesn't flush the stream.
+     * @param out The stream.
+     * @param frame The frame.
+     * @throws IOException
+     */
+    public static void write(DataOutputStream out, Frame frame) throws IOException {
+        out.write(encode(frame));
+    }
+
+    /**
+     * Read the body of a single frame from a stream. Malformed frames can be skipped by not decoding them.
+     * @param in The stream.
+     * @return The frame without the length.
+     * @throws IOException
+     */
+    public static byte[] read(DataInputStream in) throws IOException {
+        byte[] body = new byte[checkLength(readVarLong(in))];
+        in.readFully(body);
+        return body;
+    }
+
+    /**
+     * Read the length of a frame from a buffer, for readers which receive the frames in arbitrary pieces.
+     * @param buffer The buffer, positioned at the start of a frame.
+     * @return The length of the rest of the frame, or -1 if the buffer doesn't hold the whole length yet, in
+     *         which case the position of the buffer is left as it was.
+     * @throws ProtocolException if the length is malformed or out of range.
+     */
+    public static int readLength(ByteBuffer buffer) throws ProtocolException {
+        long length = 0;
+
+        for(int i = buffer.position(), shift = 0; i < buffer.limit(); i++, shift += 7) {
+            if(shift >= 35)
+                throw new ProtocolException("Malformed frame length.");
+
+            length |= (long) (buffer.get(i) & 0x7F) << shift;
+
+            if((buffer.get(i) & 0x80) == 0) {
+                buffer.position(i + 1);
+                return checkLength(length);
+            }
+        }
+
+        return -1;
+    }
+
+    private static int checkLength(long length) throws ProtocolException {
+        if(length < MIN_HEADER_LENGTH || length > MAX_FRAME_LENGTH)
+            throw new ProtocolException("Invalid frame length: " + length + ".");
+
+        return (int) length;
+    }
+
+    private static Packet read(PacketType type, DataInput in) throws IOException {
+        switch(type) {
+            case PACKET_HANDSHAKE: return PacketHandshake.read(in);
+            case PACKET_INJECT: return PacketInject.read(in);
+            case PACKET_EXECUTE: return PacketExecute.read(in);
+            case PACKET_KEEPALIVE: return new PacketKeepalive();
+            case PACKET_GOODBYE: return new PacketGoodbye();
+            case PACKET_GC: return new PacketGC();
+            case PACKET_UNLINK: return PacketUnlink.read(in);
+            case PACKET_RESPONSE: return PacketResponse.read(in);
+            case PACKET_EXECUTE_BATCH: return PacketExecuteBatch.read(in);
+            case PACKET_BATCH_RESPONSE: return PacketBatchResponse.read(in);
+            case PACKET_UNLOADED: return PacketUnloaded.read(in);
+            case PACKET_STORE: return PacketStore.read(in);
+            case PACKET_RESUME: return PacketResume.read(in);
+            case PACKET_CANCEL: return PacketCancel.read(in);
+            case PACKET_TELEMETRY: return PacketTelemetry.read(in);
+            default: throw new ProtocolException("Unhandled packet type: " + type + ".");
+        }
+    }
+
+    /**
+     * Write an unsigned varint.
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Read a varint written by <code>writeVarLong</code>.
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new ProtocolException("Malformed varint.");
+    }
+
+    /**
+     * @return The number of bytes <code>writeVarLong</code> takes to write a non-negative int.
+     */
+    private static int varIntSize(int value) {
+        int size = 1;
+
+        while((value >>>= 7) != 0)
+            size++;
+
+        return size;
+    }
+
+    /**
+     * Write a byte array, possibly null, prefixed with its length (-1 for null).
+     */
+    public static void writeBytes(DataOutput out, byte[] data) throws IOException {
+        if(data == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Read a byte array written by <code>writeBytes</code>.
+     */
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+
+        if(length == -1)
+            return null;
+
+        if(length < 0 || length > MAX_FRAME_LENGTH)
+            throw new ProtocolException("Invalid array length: " + length + ".");
+
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * Write a hex-encoded SHA-256 hash as 32 raw bytes.
+     * @see ClassBundle#hash(byte[])
+     */
+    public static void writeHash(DataOutput out, String hash) throws IOException {
+        if(hash.length() != 64)
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + hash);
+
+        for(int i = 0; i < 64; i += 2)
+            out.writeByte(Character.digit(hash.charAt(i), 16) << 4 | Character.digit(hash.charAt(i + 1), 16));
+    }
+
+    /**
+     * Read a hash written by <code>writeHash</code>.
+     */
+    public static String readHash(DataInput in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+
+        for(int i = 0; i < 32; i++) {
+            int b = in.readUnsignedByte();
+            sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+}
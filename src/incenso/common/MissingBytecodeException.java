@@ -0,0 +1,25 @@
+package incenso.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Thrown by the client when a class bundle leaves out bytecode which the client doesn't hold (anymore).
+ * The server is expected to send the bundle again, with the bytecode of the listed hashes included.
+ */
+public class MissingBytecodeException extends Exception {
+    private ArrayList<String> hashes;
+
+    public MissingBytecodeException(Collection<String> hashes) {
+        super("Missing bytecode: " + hashes);
+        this.hashes = new ArrayList<>(hashes);
+    }
+
+    /**
+     * @return The hashes of the missing bytecode.
+     */
+    public List<String> getHashes() {
+        return hashes;
+    }
+}
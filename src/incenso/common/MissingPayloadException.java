@@ -0,0 +1,27 @@
+package incenso.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Thrown by the client when a payload is sent as a reference to data the client doesn't remember (anymore).
+ * The server is expected to send the request again, with the data of the listed hashes included.
+ *
+ * @see Payload
+ */
+public class MissingPayloadException extends Exception {
+    private ArrayList<String> hashes;
+
+    public MissingPayloadException(Collection<String> hashes) {
+        super("Missing payloads: " + hashes);
+        this.hashes = new ArrayList<>(hashes);
+    }
+
+    /**
+     * @return The hashes of the missing payloads, once for every reference to them.
+     */
+    public List<String> getHashes() {
+        return hashes;
+    }
+}
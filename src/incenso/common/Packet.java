@@ -1,13 +1,17 @@
 package incenso.common;
 
-import java.io.Serializable;
+import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * A generic packet interface.
  *
+ * Every packet is encoded by hand, and is expected to provide a static <code>read(DataInput)</code>
+ * method decoding what <code>write</code> has encoded.
+ *
  * @author Kamila Szewczyk
  */
-public interface Packet extends Serializable {
+public interface Packet {
     /**
      * The only method a basic packet has to implement - identifying itself.
      * @return The packet type.
@@ -15,4 +19,13 @@ public interface Packet extends Serializable {
      * @see PacketType
      */
     PacketType getType();
+
+    /**
+     * Encode the packet contents.
+     * @param out The output.
+     * @throws IOException
+     *
+     * @see FrameCodec
+     */
+    void write(DataOutput out) throws IOException;
 }
@@ -0,0 +1,54 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The response to a PacketExecuteBatch. Holds a response for every input of the batch, in the same order,
+ * so that a single failed input doesn't fail the others.
+ *
+ * @see PacketExecuteBatch
+ * @see PacketResponse
+ */
+public class PacketBatchResponse implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_BATCH_RESPONSE;
+    }
+
+    private List<PacketResponse> responses;
+
+    public List<PacketResponse> getResponses() {
+        return responses;
+    }
+
+    public PacketBatchResponse(List<PacketResponse> responses) {
+        this.responses = Collections.unmodifiableList(responses);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(responses.size());
+
+        for(PacketResponse response : responses)
+            response.write(out);
+    }
+
+    public static PacketBatchResponse read(DataInput in) throws IOException {
+        int count = in.readInt();
+
+        if(count < 0)
+            throw new IOException("Invalid batch size: " + count + ".");
+
+        List<PacketResponse> responses = new ArrayList<>(Math.min(count, 1024));
+
+        for(int i = 0; i < count; i++)
+            responses.add(PacketResponse.read(in));
+
+        return new PacketBatchResponse(responses);
+    }
+}
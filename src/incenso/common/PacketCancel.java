@@ -0,0 +1,40 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The cancel packet. Asks the client to interrupt the chunks processed for a given request, and not answered.
+ * The server stops waiting for the request right away, so whatever the client would have sent for it is dropped.
+ *
+ * Like the keepalive and telemetry packets, it's sent on the control lane - it overtakes the queued frames.
+ */
+public class PacketCancel implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_CANCEL;
+    }
+
+    private long target;
+
+    /**
+     * @return The ID of the request to cancel.
+     */
+    public long getTarget() {
+        return target;
+    }
+
+    public PacketCancel(long target) {
+        this.target = target;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(target);
+    }
+
+    public static PacketCancel read(DataInput in) throws IOException {
+        return new PacketCancel(in.readLong());
+    }
+}
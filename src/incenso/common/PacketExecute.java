@@ -1,11 +1,22 @@
 package incenso.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
- * Execute packet - schedule execution of an already linked class to the server.
- * Holds the class name and the class object.
+ * Execute packet - schedule execution of a chunk on the client.
+ * Holds the bytecode of the chunk class along with the serialized input, so that a chunk is executed in a single
+ * round trip. If the client already holds a class with the same hash (e.g. because it has been injected),
+ * that class is used.
+ *
+ * An isolated chunk ignores the classes injected into modules, and is always executed from its own bundle.
  *
- * TODO: Because class name can be extracted from the class object, we can probably drop this field.
+ * The client answers with a PacketResponse holding the result. If the chunk can't be instantiated, the
+ * response carries a ChunkInstantiationException.
  *
+ * @see ClassBundle
+ * @see ChunkInstantiationException
  * @author Kamila Szewczyk
  */
 public class PacketExecute implements Packet {
@@ -14,20 +25,43 @@ public class PacketExecute implements Packet {
         return PacketType.PACKET_EXECUTE;
     }
 
-    // Multiple pointless getters and setters and a field constructor.
-    private String name;
-    private Class<? extends CodeChunk> data;
+    private ClassBundle code;
+    private Payload data;
+    private boolean isolated;
 
     public String getName() {
-        return name;
+        return code.getName();
+    }
+
+    public ClassBundle getCode() {
+        return code;
     }
 
-    public Class<? extends CodeChunk> getClassData() {
+    /**
+     * @return The serialized input.
+     */
+    public Payload getData() {
         return data;
     }
 
-    public PacketExecute(String name, Class<? extends CodeChunk> data) {
-        this.name = name;
+    public boolean isIsolated() {
+        return isolated;
+    }
+
+    public PacketExecute(ClassBundle code, Payload data, boolean isolated) {
+        this.code = code;
         this.data = data;
+        this.isolated = isolated;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        code.write(out);
+        data.write(out);
+        out.writeBoolean(isolated);
+    }
+
+    public static PacketExecute read(DataInput in) throws IOException {
+        return new PacketExecute(ClassBundle.read(in), Payload.read(in), in.readBoolean());
     }
 }
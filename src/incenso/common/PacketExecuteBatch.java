@@ -0,0 +1,71 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Batch execute packet - schedule execution of a chunk on the client for many inputs at once.
+ * Holds the bytecode of the chunk class, like PacketExecute, along with the serialized inputs.
+ * The client answers with a PacketBatchResponse holding a response for every input, in the same order,
+ * or with a PacketResponse carrying a ChunkInstantiationException if the chunk couldn't be loaded at all.
+ *
+ * @see PacketExecute
+ * @see PacketBatchResponse
+ */
+public class PacketExecuteBatch implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_EXECUTE_BATCH;
+    }
+
+    private ClassBundle code;
+    private List<Payload> inputs;
+
+    public String getName() {
+        return code.getName();
+    }
+
+    public ClassBundle getCode() {
+        return code;
+    }
+
+    /**
+     * @return The serialized inputs.
+     */
+    public List<Payload> getInputs() {
+        return inputs;
+    }
+
+    public PacketExecuteBatch(ClassBundle code, List<Payload> inputs) {
+        this.code = code;
+        this.inputs = Collections.unmodifiableList(inputs);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        code.write(out);
+        out.writeInt(inputs.size());
+
+        for(Payload input : inputs)
+            input.write(out);
+    }
+
+    public static PacketExecuteBatch read(DataInput in) throws IOException {
+        ClassBundle code = ClassBundle.read(in);
+        int count = in.readInt();
+
+        if(count < 0)
+            throw new IOException("Invalid batch size: " + count + ".");
+
+        List<Payload> inputs = new ArrayList<>(Math.min(count, 1024));
+
+        for(int i = 0; i < count; i++)
+            inputs.add(Payload.read(in));
+
+        return new PacketExecuteBatch(code, inputs);
+    }
+}
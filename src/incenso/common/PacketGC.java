@@ -1,5 +1,7 @@
 package incenso.common;
 
+import java.io.DataOutput;
+
 /**
  * Schedule a GC cycle.
  * May or may not take effect immediately.
@@ -11,4 +13,7 @@ public class PacketGC implements Packet {
     public PacketType getType() {
         return PacketType.PACKET_GC;
     }
+
+    @Override
+    public void write(DataOutput out) { }
 }
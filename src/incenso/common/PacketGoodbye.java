@@ -1,5 +1,7 @@
 package incenso.common;
 
+import java.io.DataOutput;
+
 /**
  * The disconnection packet. A graceful way to close the connection between the client and the server.
  *
@@ -10,4 +12,7 @@ public class PacketGoodbye implements Packet {
     public PacketType getType() {
         return PacketType.PACKET_GOODBYE;
     }
+
+    @Override
+    public void write(DataOutput out) { }
 }
@@ -1,11 +1,36 @@
 package incenso.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * A handshake packet. The first packet sent from server to client and vice versa.
  * The server is expected to send this packet with only fields `version' and `vendor' set.
  * The client is expected to send this packet with all fields set.
  *
- * The server can set the `ram', `storage' and `cpus' fields to zero.
+ * The server can set the `ram', `storage', `cpus' and `slots' fields to zero.
+ *
+ * `protocol' is the version of the wire protocol the sender speaks, always <code>Version.PROTOCOL</code>. It's
+ * encoded first, and the rest of a handshake in another version is left unread, since its layout may differ.
+ * Peers speaking different versions don't talk to each other.
+ *
+ * `slots' is the amount of chunks the client is able to process at once.
+ * `bytecode' holds the hashes of the bytecode the client already holds. The server leaves it empty.
+ *
+ * `session' is the session token. The server proposes a new one, and the client answers with the token of
+ * the session it has had before the connection was lost, if any - the server then resumes that session, provided
+ * it's still held. Otherwise the client adopts the proposed token. `modules' are the modules the client holds, and
+ * `inflight' the IDs of the requests the client is still processing or holds the responses to. The server
+ * leaves both empty.
+ *
+ * `compression' is the compression threshold. The server proposes it, and the client answers with the threshold
+ * both sides should use from now on - the proposed one, or <code>FrameCodec.COMPRESSION_DISABLED</code> if it
+ * doesn't want the frames compressed.
  *
  * @author Kamila Szewczyk
  */
@@ -15,11 +40,22 @@ public class PacketHandshake implements Packet {
         return PacketType.PACKET_HANDSHAKE;
     }
 
+    private int protocol;
     private String version;
     private String vendor;
     private long ram;
     private long storage;
     private int cpus;
+    private int slots;
+    private HashSet<String> bytecode;
+    private int compression;
+    private String session;
+    private HashSet<String> modules;
+    private HashSet<Long> inflight;
+
+    public int getProtocolVersion() {
+        return protocol;
+    }
 
     public String jvmVersion() {
         return version;
@@ -41,11 +77,122 @@ public class PacketHandshake implements Packet {
         return cpus;
     }
 
-    public PacketHandshake(String version, String vendor, long ram, long storage, int cpus) {
+    public int getSlots() {
+        return slots;
+    }
+
+    public Set<String> getBytecodeHashes() {
+        return Collections.unmodifiableSet(bytecode);
+    }
+
+    public int getCompressionThreshold() {
+        return compression;
+    }
+
+    public String getSession() {
+        return session;
+    }
+
+    public Set<String> getModules() {
+        return Collections.unmodifiableSet(modules);
+    }
+
+    public Set<Long> getInflight() {
+        return Collections.unmodifiableSet(inflight);
+    }
+
+    public PacketHandshake(String version, String vendor, long ram, long storage, int cpus, int slots,
+                           Collection<String> bytecode, int compression) {
+        this(version, vendor, ram, storage, cpus, slots, bytecode, compression, "",
+                Collections.emptySet(), Collections.emptySet());
+    }
+
+    public PacketHandshake(String version, String vendor, long ram, long storage, int cpus, int slots,
+                           Collection<String> bytecode, int compression, String session,
+                           Collection<String> modules, Collection<Long> inflight) {
+        this.inflight = new HashSet<>(inflight);
+        this.modules = new HashSet<>(modules);
+        this.session = session;
+        this.compression = compression;
+        this.bytecode = new HashSet<>(bytecode);
+        this.slots = slots;
         this.cpus = cpus;
         this.storage = storage;
         this.ram = ram;
         this.vendor = vendor;
         this.version = version;
+        this.protocol = Version.PROTOCOL;
+    }
+
+    /**
+     * A handshake in a protocol version other than ours - nothing but the version is known.
+     */
+    private PacketHandshake(int protocol) {
+        this("", "", 0, 0, 0, 0, Collections.emptySet(), FrameCodec.COMPRESSION_DISABLED);
+        this.protocol = protocol;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(protocol);
+        out.writeUTF(version);
+        out.writeUTF(vendor);
+        out.writeLong(ram);
+        out.writeLong(storage);
+        out.writeInt(cpus);
+        out.writeInt(slots);
+        out.writeInt(bytecode.size());
+
+        for(String hash : bytecode)
+            FrameCodec.writeHash(out, hash);
+
+        out.writeInt(compression);
+        out.writeUTF(session);
+        out.writeInt(modules.size());
+
+        for(String module : modules)
+            out.writeUTF(module);
+
+        out.writeInt(inflight.size());
+
+        for(long id : inflight)
+            out.writeLong(id);
+    }
+
+    public static PacketHandshake read(DataInput in) throws IOException {
+        int protocol = in.readInt();
+
+        if(protocol != Version.PROTOCOL)
+            return new PacketHandshake(protocol);
+
+        String version = in.readUTF();
+        String vendor = in.readUTF();
+        long ram = in.readLong();
+        long storage = in.readLong();
+        int cpus = in.readInt();
+        int slots = in.readInt();
+        int count = in.readInt();
+        HashSet<String> bytecode = new HashSet<>();
+
+        for(int i = 0; i < count; i++)
+            bytecode.add(FrameCodec.readHash(in));
+
+        int compression = in.readInt();
+        String session = in.readUTF();
+        HashSet<String> modules = new HashSet<>();
+        HashSet<Long> inflight = new HashSet<>();
+
+        count = in.readInt();
+
+        for(int i = 0; i < count; i++)
+            modules.add(in.readUTF());
+
+        count = in.readInt();
+
+        for(int i = 0; i < count; i++)
+            inflight.add(in.readLong());
+
+        return new PacketHandshake(version, vendor, ram, storage, cpus, slots, bytecode, compression, session,
+                modules, inflight);
     }
 }
@@ -1,9 +1,14 @@
 package incenso.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
- * The injection packet, which instructs the server to link/resolve a given class to a given module.
- * TODO: Because the class object already contains the name, we can remove the name field to reduce the net overhead.
+ * The injection packet, which instructs the client to define a given class (and the classes it depends on)
+ * in a given module.
  *
+ * @see ClassBundle
  * @author Kamila Szewczyk
  */
 public class PacketInject implements Packet {
@@ -12,24 +17,33 @@ public class PacketInject implements Packet {
         return PacketType.PACKET_INJECT;
     }
 
-    private String name, module;
-    private Class<?> data;
+    private String module;
+    private ClassBundle code;
 
     public String getName() {
-        return name;
+        return code.getName();
     }
 
-    public Class<?> getClassData() {
-        return data;
+    public ClassBundle getCode() {
+        return code;
     }
 
     public String getModule() {
         return module;
     }
 
-    public PacketInject(String name, String module, Class<?> data) {
-        this.name = name;
-        this.data = data;
+    public PacketInject(String module, ClassBundle code) {
+        this.code = code;
         this.module = module;
     }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(module);
+        code.write(out);
+    }
+
+    public static PacketInject read(DataInput in) throws IOException {
+        return new PacketInject(in.readUTF(), ClassBundle.read(in));
+    }
 }
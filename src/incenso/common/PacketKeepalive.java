@@ -1,5 +1,7 @@
 package incenso.common;
 
+import java.io.DataOutput;
+
 /**
  * The keepalive packet. Used to ensure connection between the client and server.
  * The server is expected to respond with an instance of such.
@@ -9,4 +11,7 @@ public class PacketKeepalive implements Packet {
     public PacketType getType() {
         return PacketType.PACKET_KEEPALIVE;
     }
+
+    @Override
+    public void write(DataOutput out) { }
 }
@@ -0,0 +1,85 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The response packet. Sent by the client as an answer to a request, in a frame carrying the request ID.
+ * If the operation succeeded, the payload is the operation result (possibly null). Otherwise, it's the
+ * exception which caused the failure.
+ *
+ * The payload is kept serialized, because only the receiver knows which class loader can resolve its classes.
+ *
+ * @see Frame
+ * @see Serialization
+ */
+public class PacketResponse implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_RESPONSE;
+    }
+
+    private boolean success;
+    private byte[] payload;
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Deserialize the payload.
+     * @param loader The class loader used to resolve the classes of the payload.
+     * @return The payload.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public Serializable getPayload(ClassLoader loader) throws IOException, ClassNotFoundException {
+        return Serialization.deserialize(payload, loader);
+    }
+
+    /**
+     * Create a response, serializing the payload. If the payload can't be serialized, the response
+     * reports the failure to serialize it instead.
+     * @param success Whether the operation succeeded.
+     * @param payload The result or the exception.
+     */
+    public PacketResponse(boolean success, Serializable payload) {
+        try {
+            this.payload = Serialization.serialize(payload);
+            this.success = success;
+        } catch(IOException e) {
+            this.payload = failure(e);
+            this.success = false;
+        }
+    }
+
+    private PacketResponse(boolean success, byte[] payload) {
+        this.success = success;
+        this.payload = payload;
+    }
+
+    private static byte[] failure(IOException e) {
+        try {
+            return Serialization.serialize(e);
+        } catch(IOException ex) {
+            // The cause of the exception isn't serializable either. Report just the message.
+            try {
+                return Serialization.serialize(new IOException(e.toString()));
+            } catch(IOException impossible) {
+                throw new IllegalStateException(impossible);
+            }
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(success);
+        FrameCodec.writeBytes(out, payload);
+    }
+
+    public static PacketResponse read(DataInput in) throws IOException {
+        return new PacketResponse(in.readBoolean(), FrameCodec.readBytes(in));
+    }
+}
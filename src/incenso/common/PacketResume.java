@@ -0,0 +1,53 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The resume packet. Sent by the server right after the handshake of a new connection, and not answered.
+ *
+ * Until the client receives it, it holds back all the responses, because the server might have yet to move
+ * the connection over to the resumed session. The packet lists the IDs of the requests the server still waits
+ * for - the client sends the responses to these it holds back, and discards the rest.
+ *
+ * @see PacketHandshake
+ */
+public class PacketResume implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_RESUME;
+    }
+
+    private HashSet<Long> pending;
+
+    public Set<Long> getPending() {
+        return Collections.unmodifiableSet(pending);
+    }
+
+    public PacketResume(Collection<Long> pending) {
+        this.pending = new HashSet<>(pending);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(pending.size());
+
+        for(long id : pending)
+            out.writeLong(id);
+    }
+
+    public static PacketResume read(DataInput in) throws IOException {
+        int count = in.readInt();
+        HashSet<Long> pending = new HashSet<>();
+
+        for(int i = 0; i < count; i++)
+            pending.add(in.readLong());
+
+        return new PacketResume(pending);
+    }
+}
@@ -0,0 +1,50 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The store packet. Stores serialized data on the client under a given key, so that chunks can read it
+ * without it being sent along with each of them. A null value removes the data stored under the key.
+ *
+ * The client answers with a PacketResponse holding the list of the keys it has dropped since the last store,
+ * for lack of space.
+ *
+ * @see ChunkContext
+ */
+public class PacketStore implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_STORE;
+    }
+
+    private String key;
+    private byte[] value;
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The serialized value, or null to remove the data stored under the key.
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    public PacketStore(String key, byte[] value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(key);
+        FrameCodec.writeBytes(out, value);
+    }
+
+    public static PacketStore read(DataInput in) throws IOException {
+        return new PacketStore(in.readUTF(), FrameCodec.readBytes(in));
+    }
+}
@@ -0,0 +1,103 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The telemetry packet. Sent empty by the server, and echoed back by the client with a snapshot of its load.
+ * Answered by the thread reading the packets, so it's answered even if all the worker threads are busy.
+ */
+public class PacketTelemetry implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_TELEMETRY;
+    }
+
+    private int running, queued;
+    private long completed, heapUsed, heapMax, uptime;
+    private double loadAverage;
+
+    /**
+     * @return The amount of requests being processed.
+     */
+    public int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return The amount of chunks waiting for a worker thread.
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return The amount of chunks processed since the client has started.
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return The heap in use, in KiB.
+     */
+    public long getHeapUsed() {
+        return heapUsed;
+    }
+
+    /**
+     * @return The maximum heap size, in KiB.
+     */
+    public long getHeapMax() {
+        return heapMax;
+    }
+
+    /**
+     * @return The system load average for the last minute, or a negative value if it's not available.
+     */
+    public double getLoadAverage() {
+        return loadAverage;
+    }
+
+    /**
+     * @return For how long the client has been running, in milliseconds.
+     */
+    public long getUptime() {
+        return uptime;
+    }
+
+    /**
+     * Create a telemetry request.
+     */
+    public PacketTelemetry() {
+        this(0, 0, 0, 0, 0, -1, 0);
+    }
+
+    public PacketTelemetry(int running, int queued, long completed, long heapUsed, long heapMax,
+                           double loadAverage, long uptime) {
+        this.running = running;
+        this.queued = queued;
+        this.completed = completed;
+        this.heapUsed = heapUsed;
+        this.heapMax = heapMax;
+        this.loadAverage = loadAverage;
+        this.uptime = uptime;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(running);
+        out.writeInt(queued);
+        out.writeLong(completed);
+        out.writeLong(heapUsed);
+        out.writeLong(heapMax);
+        out.writeDouble(loadAverage);
+        out.writeLong(uptime);
+    }
+
+    public static PacketTelemetry read(DataInput in) throws IOException {
+        return new PacketTelemetry(in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readLong(),
+                in.readDouble(), in.readLong());
+    }
+}
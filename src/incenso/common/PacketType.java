@@ -2,8 +2,45 @@ package incenso.common;
 
 /**
  * All the packet types recognized by the client.
+ *
+ * Every type has a fixed code, which identifies it on the wire. The codes never change, and the code of a type
+ * which has been removed isn't reused, so that a frame is never mistaken for another type by a peer built
+ * from different sources.
  */
 public enum PacketType {
-    PACKET_HANDSHAKE, PACKET_INJECT, PACKET_EXECUTE, PACKET_KEEPALIVE, PACKET_GOODBYE,
-    PACKET_GC, PACKET_UNLINK
+    PACKET_HANDSHAKE(0), PACKET_INJECT(1), PACKET_EXECUTE(2), PACKET_KEEPALIVE(3), PACKET_GOODBYE(4),
+    PACKET_GC(5), PACKET_UNLINK(6), PACKET_RESPONSE(7), PACKET_EXECUTE_BATCH(9), PACKET_BATCH_RESPONSE(10),
+    PACKET_UNLOADED(11), PACKET_STORE(12), PACKET_RESUME(13), PACKET_CANCEL(14), PACKET_TELEMETRY(15);
+
+    private static final PacketType[] BY_CODE = new PacketType[FrameCodec.TYPE_MASK + 1];
+
+    static {
+        for(PacketType type : values()) {
+            if(BY_CODE[type.code] != null)
+                throw new IllegalStateException("Duplicate packet code: " + type.code + ".");
+
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    PacketType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return The code identifying the type on the wire, between 0 and <code>FrameCodec.TYPE_MASK</code>.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param code The code read from the wire.
+     * @return The type with a given code, or null if there's no such type.
+     */
+    public static PacketType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
 }
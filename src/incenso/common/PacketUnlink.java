@@ -1,11 +1,15 @@
 package incenso.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * The unlink packet. Schedules the client to remove given module's classloader, causing all the loaded
- * classes to be unlinked. This may or may not take effect instantly, it may be needed to send a PacketGC
- * soon afterwards, but even that doesn't guarantee instant collection.
+ * classes to be unlinked. The classes are unloaded whenever the garbage collector gets to them - the client
+ * answers with a PacketUnloaded once that happens, or with a failed PacketResponse if there's no such module.
  *
- * @see PacketGC
+ * @see PacketUnloaded
  * @author Kamila Szewczyk
  */
 public class PacketUnlink implements Packet {
@@ -23,4 +27,13 @@ public class PacketUnlink implements Packet {
     public PacketUnlink(String name) {
         this.name = name;
     }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(name);
+    }
+
+    public static PacketUnlink read(DataInput in) throws IOException {
+        return new PacketUnlink(in.readUTF());
+    }
 }
@@ -0,0 +1,38 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The unloaded packet. Sent by the client in a frame carrying the ID of a PacketUnlink request, once the
+ * classloader of the unlinked module has actually been unloaded. That happens whenever the garbage collector
+ * gets to it, so it may take a while.
+ *
+ * @see PacketUnlink
+ */
+public class PacketUnloaded implements Packet {
+    @Override
+    public PacketType getType() {
+        return PacketType.PACKET_UNLOADED;
+    }
+
+    private String name;
+
+    public String getName() {
+        return name;
+    }
+
+    public PacketUnloaded(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(name);
+    }
+
+    public static PacketUnloaded read(DataInput in) throws IOException {
+        return new PacketUnloaded(in.readUTF());
+    }
+}
@@ -0,0 +1,81 @@
+package incenso.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The serialized input of a chunk, as sent over the wire. Large inputs are identified by the hash of their
+ * content, so that an input the client has recently received can be sent as just the hash.
+ *
+ * A payload is either:
+ * <ul>
+ *     <li>inline - just the data, too small to be worth deduplicating,</li>
+ *     <li>cached - the data along with its hash, which the client remembers it under,</li>
+ *     <li>a reference - just the hash of data the client is expected to remember.</li>
+ * </ul>
+ *
+ * @see MissingPayloadException
+ */
+public class Payload {
+    private static final byte INLINE = 0, CACHED = 1, REFERENCE = 2;
+
+    private String hash;
+    private byte[] data;
+
+    private Payload(String hash, byte[] data) {
+        this.hash = hash;
+        this.data = data;
+    }
+
+    public static Payload inline(byte[] data) {
+        return new Payload(null, data);
+    }
+
+    public static Payload cached(String hash, byte[] data) {
+        return new Payload(hash, data);
+    }
+
+    public static Payload reference(String hash) {
+        return new Payload(hash, null);
+    }
+
+    /**
+     * @return The hash of the data, or null if the payload isn't deduplicated.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The data, or null if the payload is a reference.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        if(hash == null) {
+            out.writeByte(INLINE);
+            FrameCodec.writeBytes(out, data);
+        } else if(data != null) {
+            out.writeByte(CACHED);
+            FrameCodec.writeHash(out, hash);
+            FrameCodec.writeBytes(out, data);
+        } else {
+            out.writeByte(REFERENCE);
+            FrameCodec.writeHash(out, hash);
+        }
+    }
+
+    public static Payload read(DataInput in) throws IOException {
+        byte kind = in.readByte();
+
+        switch(kind) {
+            case INLINE: return inline(FrameCodec.readBytes(in));
+            case CACHED: return cached(FrameCodec.readHash(in), FrameCodec.readBytes(in));
+            case REFERENCE: return reference(FrameCodec.readHash(in));
+            default: throw new IOException("Invalid payload kind: " + kind + ".");
+        }
+    }
+}
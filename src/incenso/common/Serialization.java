@@ -0,0 +1,63 @@
+package incenso.common;
+
+import java.io.*;
+
+/**
+ * Helpers for serializing user data separately from the packets carrying it.
+ *
+ * User data can contain instances of classes which have been sent over the protocol, so it can only be
+ * deserialized once it's known which class loader to resolve the classes with.
+ */
+public class Serialization {
+    /**
+     * An object input stream resolving classes with a given class loader.
+     */
+    private static class LoaderObjectInputStream extends ObjectInputStream {
+        private final ClassLoader loader;
+
+        LoaderObjectInputStream(InputStream in, ClassLoader loader) throws IOException {
+            super(in);
+            this.loader = loader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, loader);
+            } catch(ClassNotFoundException e) {
+                // Primitive types and the like.
+                return super.resolveClass(desc);
+            }
+        }
+    }
+
+    /**
+     * Serialize an object.
+     * @param x The object, possibly null.
+     * @return The serialized form.
+     * @throws IOException if the object isn't serializable.
+     */
+    public static byte[] serialize(Serializable x) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(x);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize an object.
+     * @param data The serialized form.
+     * @param loader The class loader used to resolve the classes.
+     * @return The object.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Serializable deserialize(byte[] data, ClassLoader loader) throws IOException, ClassNotFoundException {
+        try(ObjectInputStream in = new LoaderObjectInputStream(new ByteArrayInputStream(data), loader)) {
+            return (Serializable) in.readObject();
+        }
+    }
+}
@@ -2,8 +2,13 @@ package incenso.common;
 
 /**
  * Incenso version.
- * TODO: Add a packet for verifying Incenso library version and dropping the connection of major & minor doesn't match.
  */
 public class Version {
     public static String VERSION = "v1.0.0";
+
+    /**
+     * The version of the wire protocol. Bumped whenever the layout of the frames or the packets changes, so
+     * that peers built from different sources refuse each other in the handshake instead of misreading frames.
+     */
+    public static final int PROTOCOL = 2;
 }
@@ -5,6 +5,7 @@ import incenso.server.transport.IncensoServer;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 public class Start {
@@ -21,19 +22,21 @@ public class Start {
             // Start listening for incoming connections.
             IncensoServer srv = new IncensoServer(1234);
 
-            // Wait until we have two clients available.
-            while(srv.clientCount() != 5)
-                ;
+            // Wait until we have five clients available.
+            srv.awaitClients(5, 0, TimeUnit.SECONDS);
 
             System.err.println("Got 5 clients!");
 
             // Stop accepting new connections.
             srv.close();
 
-            // Send a hello world program to each of the clients.
-            srv.clientForEach(x -> x.scheduleNew(Printer.class, "Hello, world!")
-                    .unwrap(a -> System.out.println("Sent code to client!"))
-                    .orElse(a -> a.printStackTrace()));
+            // Send a hello world program to all of the clients at once, and wait until it's done.
+            srv.broadcast(x -> x.scheduleNew(Printer.class, "Hello, world!"))
+                    .unwrap(r -> {
+                        System.out.println("Sent code to " + r.getResults().size() + " clients!");
+                        r.getFailures().values().forEach(Throwable::printStackTrace);
+                    })
+                    .resolve();
 
             // Close all connections.
             srv.dispose();
@@ -0,0 +1,111 @@
+package incenso.server.transport;
+
+import incenso.server.util.Deferred;
+import incenso.server.util.Promise;
+import incenso.server.util.RemoteException;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs an operation on many clients at once, keeping at most a given amount of the operations in flight.
+ *
+ * An operation is started as soon as another one is resolved. Operations resolved right away (e.g. failing
+ * before sending anything) don't nest - the thread already starting the operations picks up the freed slots.
+ *
+ * @param <X> Finish type of the operation.
+ * @see BroadcastResult
+ */
+class Broadcast<X> {
+    private final List<Client> targets;
+
+    private final Function<? super Client, ? extends Promise<? extends X, RemoteException>> action;
+
+    private final BroadcastResult<X> outcome;
+
+    private final Deferred<BroadcastResult<X>, RemoteException> done = new Deferred<>();
+
+    /**
+     * The amount of operations which may be started right now.
+     */
+    private final AtomicInteger permits;
+
+    /**
+     * The amount of operations which haven't been resolved yet.
+     */
+    private final AtomicInteger remaining;
+
+    /**
+     * Nonzero while a thread is starting the operations, counting the requests to start more.
+     */
+    private final AtomicInteger starting = new AtomicInteger();
+
+    /**
+     * The index of the next client to start the operation on. Only touched by the thread starting the operations.
+     */
+    private int next = 0;
+
+    Broadcast(List<Client> targets, Function<? super Client, ? extends Promise<? extends X, RemoteException>> action,
+              int concurrency) {
+        this.targets = targets;
+        this.action = action;
+        this.outcome = new BroadcastResult<>(targets);
+        this.permits = new AtomicInteger(concurrency);
+        this.remaining = new AtomicInteger(targets.size());
+    }
+
+    /**
+     * Start the broadcast.
+     * @return A promise finishing with the outcome once the operation has been resolved on every client.
+     *         It never fails.
+     */
+    Promise<BroadcastResult<X>, RemoteException> start() {
+        if(targets.isEmpty())
+            done.finish(outcome);
+        else
+            drain();
+
+        return done;
+    }
+
+    private void drain() {
+        if(starting.getAndIncrement() != 0)
+            return;
+
+        do {
+            while(next < targets.size() && permits.get() > 0) {
+                permits.decrementAndGet();
+                launch(next++);
+            }
+        } while(starting.decrementAndGet() != 0);
+    }
+
+    private void launch(int i) {
+        Promise<? extends X, RemoteException> p;
+
+        try {
+            p = action.apply(targets.get(i));
+        } catch(RuntimeException e) {
+            p = Deferred.failed(new RemoteException("The broadcast operation failed.", e));
+        }
+
+        if(p == null)
+            p = Deferred.failed(new RemoteException("The broadcast operation returned no promise."));
+
+        p.unwrap(x -> resolved(i, x, null)).orElse(e -> resolved(i, null,
+                e != null ? e : new RemoteException("The broadcast operation failed.")));
+    }
+
+    private void resolved(int i, Object result, RemoteException failure) {
+        outcome.record(i, result, failure);
+
+        if(remaining.decrementAndGet() == 0) {
+            done.finish(outcome);
+            return;
+        }
+
+        permits.incrementAndGet();
+        drain();
+    }
+}
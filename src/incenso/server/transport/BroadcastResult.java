@@ -0,0 +1,82 @@
+package incenso.server.transport;
+
+import incenso.server.util.RemoteException;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of an operation broadcast to many clients - the finish value or the fail value of the operation
+ * on every one of them.
+ *
+ * @param <X> Finish type of the operation.
+ * @see IncensoServer#broadcast(java.util.function.Function, int)
+ */
+public class BroadcastResult<X> {
+    private final List<Client> clients;
+
+    private final Object[] results;
+
+    private final RemoteException[] failures;
+
+    BroadcastResult(List<Client> clients) {
+        this.clients = clients;
+        this.results = new Object[clients.size()];
+        this.failures = new RemoteException[clients.size()];
+    }
+
+    /**
+     * Record the outcome of the operation on the i-th client. Every client is recorded exactly once.
+     */
+    void record(int i, Object result, RemoteException failure) {
+        results[i] = result;
+        failures[i] = failure;
+    }
+
+    /**
+     * @return The clients the operation has been broadcast to, in the order it has been started on them.
+     */
+    public List<Client> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+
+    /**
+     * @return The finish values of the operation, keyed by the clients it has finished on.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Client, X> getResults() {
+        Map<Client, X> map = new LinkedHashMap<>();
+
+        for(int i = 0; i < results.length; i++)
+            if(failures[i] == null)
+                map.put(clients.get(i), (X) results[i]);
+
+        return map;
+    }
+
+    /**
+     * @return The fail values of the operation, keyed by the clients it has failed on.
+     */
+    public Map<Client, RemoteException> getFailures() {
+        Map<Client, RemoteException> map = new LinkedHashMap<>();
+
+        for(int i = 0; i < failures.length; i++)
+            if(failures[i] != null)
+                map.put(clients.get(i), failures[i]);
+
+        return map;
+    }
+
+    /**
+     * @return Whether the operation has finished on every client.
+     */
+    public boolean isSuccess() {
+        for(RemoteException failure : failures)
+            if(failure != null)
+                return false;
+
+        return true;
+    }
+}
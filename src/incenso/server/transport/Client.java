@@ -1,12 +1,33 @@
 package incenso.server.transport;
 
 import incenso.common.*;
+import incenso.server.util.ClassCollector;
+import incenso.server.util.Deferred;
+import incenso.server.util.HashedWheelTimer;
+import incenso.server.util.PhiAccrualFailureDetector;
 import incenso.server.util.Promise;
 import incenso.server.util.RemoteException;
+import incenso.server.util.RttTracker;
 
 import java.io.*;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -16,296 +37,1577 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Client {
     /**
-     * The socket used as a channel for communication between the remote client and this server.
+     * Initial size of the read buffer. It grows to fit large frames, and shrinks back once they're read.
      */
-    private final Socket io;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
 
     /**
-     * Serialization output stream.
+     * The non-blocking channel used for communication between the remote client and this server.
+     * Replaced when the client reconnects and resumes its session.
      */
-    private final ObjectOutputStream out;
+    private volatile SocketChannel io;
 
     /**
-     * Serialization input stream.
+     * The I/O thread this client is bound to. It reads the frames sent by the client and routes them to
+     * the requests waiting for them, and writes the frames which couldn't be written right away.
      */
-    private final ObjectInputStream in;
+    private volatile EventLoop loop;
 
     /**
-     * Upload lock - locked during performing I/O operations on the client socket.
+     * Selection key of the channel.
+     */
+    private volatile SelectionKey key;
+
+    /**
+     * Buffer holding the frames which have been read only partially.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Frames waiting to be written, because the socket send buffer has been full. Guarded by the upload lock.
+     */
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    /**
+     * Frames of the control lane - keepalives, cancellations and telemetry requests - waiting to be written.
+     * They overtake the frames in the write queue, so that a large upload doesn't hold them up.
+     * Guarded by the upload lock.
+     */
+    private final ArrayDeque<ByteBuffer> controlQueue = new ArrayDeque<>();
+
+    /**
+     * The frame being written, taken off its queue. It's always finished before the next frame is started.
+     * Guarded by the upload lock.
+     */
+    private ByteBuffer partial = null;
+
+    /**
+     * Set once the connection should be closed as soon as all the frames are written. Guarded by the upload lock.
+     */
+    private boolean closing = false;
+
+    /**
+     * Upload lock - locked while a frame is being written to the client socket.
+     * It's never held for the whole round trip, so that multiple requests can be in flight at once.
      */
     private final ReentrantLock uploadLock = new ReentrantLock();
 
     /**
-     * Synchronize lock - locked during synchronization of client specs with the client wrapper class.
+     * The source of request IDs. Every request sent to the client gets a fresh one, and the client
+     * tags its response with it.
+     */
+    private final AtomicLong requestIds = new AtomicLong();
+
+    /**
+     * A request which has been sent to the client, but hasn't been answered yet.
+     */
+    private static class PendingRequest extends Deferred<Packet, RemoteException> {
+        /**
+         * The request. Chunks aren't held for the client while it's detached, unlike the other requests.
+         */
+        final Packet packet;
+
+        /**
+         * The request timeout, if any. Cancelled as soon as the response arrives.
+         */
+        volatile HashedWheelTimer.Timeout timeout;
+
+        PendingRequest(Packet packet) {
+            this.packet = packet;
+        }
+
+        void cancelTimeout() {
+            HashedWheelTimer.Timeout t = timeout;
+
+            if(t != null)
+                t.cancel();
+        }
+    }
+
+    /**
+     * Requests which have been sent to the client, but haven't been answered yet, keyed by request ID.
+     */
+    private final ConcurrentHashMap<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The IDs of the requests processing chunks, keyed by the promises returned for the chunks, so that
+     * the chunks can be cancelled. A promise is registered with <code>NOT_SENT</code> before it's returned,
+     * and removed once it's resolved or cancelled.
+     */
+    private final ConcurrentHashMap<Deferred<?, RemoteException>, Long> cancellable = new ConcurrentHashMap<>();
+
+    /**
+     * Stands for the request ID of a chunk which hasn't been sent yet. Request IDs start at 1.
+     */
+    private static final long NOT_SENT = 0;
+
+    /**
+     * Requests which haven't been answered for that many milliseconds fail. Zero means no timeout.
+     */
+    private volatile int requestTimeout = 0;
+
+    /**
+     * Set until the connection is lost or closed. Ensures the disconnection is handled exactly once.
+     * Set again if the client reconnects and resumes its session.
+     */
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+
+    /**
+     * The token of the session, presented by the client when it reconnects. Proposed by the server, unless
+     * the client presents the token of a session the server doesn't hold anymore.
+     */
+    private volatile String session = UUID.randomUUID().toString();
+
+    /**
+     * Set once the initial handshake is done, and the client has been announced to the server.
+     */
+    private volatile boolean announced = false;
+
+    /**
+     * Ends the session of a client which hasn't reconnected in time. Guarded by the client's monitor.
+     */
+    private HashedWheelTimer.Timeout expiry;
+
+    /**
+     * The modules the client holds, as of the last handshake or upload.
+     */
+    private final Set<String> modules = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Synchronize lock - held during synchronization of client specs with the client wrapper class.
+     * It's a semaphore, because it's released by whichever thread ends up resolving the promise.
+     */
+    private final Semaphore synchronizeLock = new Semaphore(1);
+
+    /**
+     * The ID of the client, unique within the server.
+     */
+    private final long id;
+
+    /**
+     * Cached amount of storage available in KB.
+     */
+    private volatile long storage = 0;
+
+    /**
+     * Cached amount of RAM in KiB.
+     */
+    private volatile long ram = 0;
+
+    /**
+     * Cached amount of processors available to the target machine.
+     */
+    private volatile int processors = 0;
+
+    /**
+     * Cached amount of chunks the target machine can process at once.
+     */
+    private volatile int slots = 0;
+
+    /**
+     * Cached version and vendor of the JVM running on the target machine.
+     */
+    private volatile String javaVersion, javaVendor;
+
+    /**
+     * Set while the client is in the idle queue of the registry.
+     */
+    private final AtomicBoolean idleQueued = new AtomicBoolean();
+
+    /**
+     * The compression threshold negotiated in the handshake. No frames are compressed before that.
+     */
+    private volatile int compressionThreshold = FrameCodec.COMPRESSION_DISABLED;
+
+    /**
+     * Hashes of the bytecode the client is known to hold. Bytecode with these hashes is left out of the
+     * class bundles sent to the client.
+     */
+    private final Set<String> knownHashes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The amount of chunks scheduled on the client which haven't been resolved yet.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * Deduplicates the chunk inputs sent to the client.
+     */
+    private final PayloadDedup payloads = new PayloadDedup();
+
+    /**
+     * Keys of the data stored on the client, as of the last response to a store.
+     */
+    private final Set<String> storedKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The largest amount of inputs gathered into a single batch.
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /**
+     * Inputs of a chunk class waiting to be sent to the client in a single PacketExecuteBatch.
+     */
+    private static class Batch {
+        final List<Serializable> params = new ArrayList<>();
+        final List<Deferred<Serializable, RemoteException>> results = new ArrayList<>();
+    }
+
+    /**
+     * Batches being gathered, keyed by the chunk class. Guarded by itself.
+     */
+    private final HashMap<Class<? extends CodeChunk>, Batch> batches = new HashMap<>();
+
+    /**
+     * The weight of the newest sample in the latency average.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    /**
+     * Exponentially weighted moving average of the time it takes to execute a chunk, in milliseconds.
+     * Includes the transfer and the time spent in the queue of the client. Zero until the first chunk finishes.
+     */
+    private volatile double latency = 0;
+
+    /**
+     * Incenso server which owns the current client instance.
+     */
+    private final IncensoServer server;
+
+    /**
+     * The default heartbeat interval in milliseconds.
+     */
+    private static final int DEFAULT_HEARTBEAT_INTERVAL = 1000;
+
+    /**
+     * The default phi above which the client is suspected - there's less than a 10% chance it's just late.
+     */
+    public static final double DEFAULT_SUSPECT_PHI = 1;
+
+    /**
+     * The default phi above which the client is dropped - there's less than a 1e-8 chance it's just late.
+     */
+    public static final double DEFAULT_DEAD_PHI = 8;
+
+    /**
+     * The amount of heartbeat intervals, and of round trip times, the failure detection is based on.
      */
-    private final ReentrantLock synchronizeLock = new ReentrantLock();
+    private static final int HEARTBEAT_WINDOW = 256;
+
+    /**
+     * A keepalive message is sent every that many milliseconds, unless other data has arrived in the meantime.
+     */
+    private volatile int heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+    /**
+     * The thresholds of the suspicion level, above which the client is suspected and dropped, respectively.
+     */
+    private volatile double suspectPhi = DEFAULT_SUSPECT_PHI, deadPhi = DEFAULT_DEAD_PHI;
+
+    /**
+     * Judges the silence of the client. Fed with the keepalive responses; any other data proves the
+     * connection is alive too. Replaced whenever the heartbeat interval changes or the client reconnects.
+     */
+    private volatile PhiAccrualFailureDetector detector = detector(DEFAULT_HEARTBEAT_INTERVAL);
+
+    /**
+     * The round trip times of the keepalive messages.
+     */
+    private final RttTracker rtt = new RttTracker(HEARTBEAT_WINDOW);
+
+    /**
+     * Set while a keepalive message is waiting for the response, so that they don't pile up.
+     */
+    private final AtomicBoolean heartbeatPending = new AtomicBoolean();
+
+    /**
+     * The next heartbeat, scheduled on the timer of the server. Guarded by the client's monitor.
+     */
+    private HashedWheelTimer.Timeout heartbeat;
+
+    /**
+     * A basic client constructor used by IncensoServer. Must be called on the thread of the given event loop.
+     * @param parent IncensoServer which owns the current client.
+     * @param io Non-blocking channel used as the main channel of communication between server and the remote.
+     * @param loop The I/O thread to bind the client to.
+     * @throws RemoteException
+     */
+    Client(IncensoServer parent, SocketChannel io, EventLoop loop) throws RemoteException {
+        this.io = io;
+        this.loop = loop;
+        this.server = parent;
+        this.id = parent.getRegistry().nextId();
+
+        try {
+            key = loop.register(io, SelectionKey.OP_READ, this::ready);
+
+            handshake();
+        } catch(IOException e) {
+            throw new RemoteException("Socket manipulation exception.", e);
+        } catch(Exception e) {
+            throw new RemoteException("Unhandled error.", e);
+        }
+    }
+
+    /**
+     * Called on the I/O thread when the channel is ready for reading or writing.
+     */
+    private void ready(SelectionKey key) {
+        try {
+            if(key.isReadable())
+                read();
+
+            if(key.isValid() && key.isWritable())
+                flush();
+        } catch(Exception e) {
+            drop(new RemoteException(RemoteException.Kind.DISCONNECTED, "Connection lost.", e));
+        }
+    }
+
+    /**
+     * Read whatever the client has sent, handing every complete frame over to the request waiting for it.
+     *
+     * The frames are decoded and the requests are resolved on the promise executor, so that neither a large frame
+     * nor a slow continuation can stall the I/O thread.
+     * @throws IOException
+     */
+    private void read() throws IOException {
+        int read = io.read(readBuffer);
+
+        if(read < 0)
+            throw new EOFException("The client has closed the connection.");
+
+        // Any data proves the connection is alive, even a part of a frame which takes long to arrive.
+        if(read > 0)
+            detector.seen(System.currentTimeMillis());
+
+        readBuffer.flip();
+
+        int needed = 0;
+
+        while(readBuffer.hasRemaining()) {
+            int start = readBuffer.position();
+            int length = FrameCodec.readLength(readBuffer);
+
+            if(length < 0)
+                break;
+
+            if(readBuffer.remaining() < length) {
+                needed = readBuffer.position() - start + length;
+                readBuffer.position(start);
+                break;
+            }
+
+            byte[] body = new byte[length];
+            readBuffer.get(body);
+
+            PendingRequest request = pending.remove(FrameCodec.id(body));
+
+            // Responses to requests nobody waits for anymore are silently dropped. The frames are decoded
+            // along with the requests, so that decompressing a large one doesn't keep the I/O thread from reading.
+            if(request != null) {
+                request.cancelTimeout();
+                Promise.getExecutor().execute(() -> {
+                    Frame frame;
+
+                    try {
+                        frame = FrameCodec.decode(body);
+                    } catch(IOException e) {
+                        RemoteException ex = new RemoteException("Malformed frame.", e);
+                        request.fail(ex);
+                        drop(ex);
+                        return;
+                    }
+
+                    request.finish(frame.getPacket());
+                });
+            }
+        }
+
+        readBuffer.compact();
+
+        if(needed > readBuffer.capacity() || (needed == 0 && readBuffer.position() == 0
+                && readBuffer.capacity() > READ_BUFFER_SIZE)) {
+            // Grow the buffer to fit the frame, or shrink it back after a large frame.
+            ByteBuffer resized = ByteBuffer.allocate(Math.max(needed, READ_BUFFER_SIZE));
+            readBuffer.flip();
+            resized.put(readBuffer);
+            readBuffer = resized;
+        }
+    }
+
+    /**
+     * Write the queued frames, as far as the socket send buffer allows.
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        uploadLock.lock();
+
+        try {
+            while(!isFlushed()) {
+                if(partial == null)
+                    partial = controlQueue.isEmpty() ? writeQueue.poll() : controlQueue.poll();
+
+                io.write(partial);
+
+                if(partial.hasRemaining())
+                    return;
+
+                partial = null;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+
+            if(closing)
+                drop(new RemoteException(RemoteException.Kind.DISCONNECTED, "Disconnected."));
+        } finally {
+            uploadLock.unlock();
+        }
+    }
+
+    /**
+     * Schedule the next heartbeat, replacing the one scheduled before.
+     * @param delay The delay in milliseconds.
+     */
+    private synchronized void scheduleHeartbeat(long delay) {
+        if(heartbeat != null)
+            heartbeat.cancel();
+
+        if(connected.get())
+            heartbeat = server.getTimer().schedule(this::heartbeat, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return A failure detector for a given heartbeat interval. A pause of one interval is tolerated, i.e.
+     *         a single missed heartbeat doesn't raise any suspicion.
+     */
+    private static PhiAccrualFailureDetector detector(int interval) {
+        return new PhiAccrualFailureDetector(HEARTBEAT_WINDOW, interval, interval / 4.0, interval,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Called on the timer thread. Sends a keepalive message, unless the previous one is still waiting for
+     * the response or other data has arrived within the last interval, and drops the client once its silence
+     * is too suspicious.
+     */
+    private void heartbeat() {
+        if(!connected.get())
+            return;
+
+        long now = System.currentTimeMillis();
+        PhiAccrualFailureDetector d = detector;
+        double phi = d.phi(now);
+
+        if(phi >= deadPhi) {
+            // Don't run the disconnection handlers on the timer thread.
+            Promise.getExecutor().execute(() -> drop(new RemoteException(RemoteException.Kind.DISCONNECTED,
+                    "Heartbeat timed out (phi = " + String.format("%.1f", phi) + ").")));
+            return;
+        }
+
+        long seen = d.getLastSeen();
+
+        // The data which has arrived since the last heartbeat stands in for the keepalive, so that a busy
+        // connection isn't burdened with keepalives, and the intervals don't grow longer while it's busy.
+        if(now - seen < heartbeatInterval && seen > d.getLastHeartbeat()) {
+            d.heartbeat(seen);
+            scheduleHeartbeat(heartbeatInterval);
+            return;
+        }
+
+        // A keepalive which isn't answered is just a missed heartbeat.
+        if(heartbeatPending.compareAndSet(false, true))
+            isAlive().unwrap(x -> heartbeatPending.set(false)).orElse(x -> heartbeatPending.set(false));
+
+        scheduleHeartbeat(heartbeatInterval);
+    }
+
+    /**
+     * Handle the connection loss. Closes the socket, and either detaches the client or terminates it.
+     * Subsequent calls have no effect, until the client resumes its session.
+     *
+     * If the connection has been lost rather than closed, the client is detached - it's removed from the
+     * registry, but the session is held for the grace period of the server. The pending chunks fail right away,
+     * so that they're retried on other clients rather than waiting for this one; the other requests are held
+     * along with the session. If the client reconnects in time, it resumes the session. Otherwise, it's
+     * terminated.
+     * @param cause The reason for dropping the connection.
+     */
+    private void drop(RemoteException cause) {
+        if(!connected.compareAndSet(true, false))
+            return;
+
+        scheduleHeartbeat(0);
+
+        try {
+            io.close();
+        } catch(IOException e) {
+            // We're dropping the connection anyway.
+        }
+
+        long grace = server.getSessionGrace();
+        boolean resumable;
+
+        uploadLock.lock();
+
+        try {
+            resumable = announced && !closing && grace > 0;
+        } finally {
+            uploadLock.unlock();
+        }
+
+        if(!resumable) {
+            terminate(cause);
+            return;
+        }
+
+        server.clientDetached(this);
+
+        RemoteException lost = cause.getKind() == RemoteException.Kind.DISCONNECTED ? cause
+                : new RemoteException(RemoteException.Kind.DISCONNECTED, cause.getMessage(), cause);
+
+        for(Map.Entry<Long, PendingRequest> e : pending.entrySet()) {
+            PendingRequest request = e.getValue();
+            PacketType type = request.packet.getType();
+
+            if((type == PacketType.PACKET_EXECUTE || type == PacketType.PACKET_EXECUTE_BATCH)
+                    && pending.remove(e.getKey(), request)) {
+                request.cancelTimeout();
+                Promise.getExecutor().execute(() -> request.fail(lost));
+            }
+        }
+
+        synchronized(this) {
+            expiry = server.getTimer().schedule(() -> Promise.getExecutor().execute(() -> {
+                if(server.expireSession(session, this))
+                    terminate(cause);
+            }), grace, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * End the session of a detached client. Has no effect if the client has reconnected in the meantime.
+     */
+    void expire() {
+        if(!connected.get())
+            terminate(new RemoteException(RemoteException.Kind.DISCONNECTED, "The session has expired."));
+    }
+
+    /**
+     * Remove the client from the server and fail all the pending requests.
+     *
+     * The client is removed first, so that the requests retried in response to the failure land elsewhere.
+     * @param cause The reason for dropping the connection.
+     */
+    private void terminate(RemoteException cause) {
+        // A client which hasn't done the handshake hasn't been announced either.
+        if(announced)
+            server.onDisconnect().broadcast(this);
+
+        server.clientUnlink(this);
+
+        // Whatever the reason, the pending requests have been cut off by the connection loss.
+        RemoteException lost = cause.getKind() == RemoteException.Kind.DISCONNECTED ? cause
+                : new RemoteException(RemoteException.Kind.DISCONNECTED, cause.getMessage(), cause);
+
+        pending.values().forEach(x -> {
+            x.cancelTimeout();
+            Promise.getExecutor().execute(() -> x.fail(lost));
+        });
+        pending.clear();
+    }
+
+    /**
+     * Write a single frame to the client. The frame is written right away if the socket send buffer allows,
+     * otherwise it's queued and written by the I/O thread. Never blocks waiting for the socket.
+     * @param id The request ID.
+     * @param p The packet.
+     * @throws IOException
+     */
+    private void write(long id, Packet p) throws IOException {
+        write(id, p, false);
+    }
+
+    /**
+     * Write a single frame to the client.
+     * @param id The request ID.
+     * @param p The packet.
+     * @param control Whether to send the frame on the control lane, i.e. ahead of the queued frames. It still
+     *                waits for the frame being written, if any - frames can't be interleaved.
+     * @throws IOException
+     */
+    private void write(long id, Packet p, boolean control) throws IOException {
+        // Encode the frame before taking the lock, so that other writers aren't held up by it.
+        ByteBuffer frame = ByteBuffer.wrap(FrameCodec.encode(new Frame(id, p), compressionThreshold));
+
+        uploadLock.lock();
+
+        try {
+            if(closing)
+                throw new IOException("The connection is being closed.");
+
+            // Otherwise, frames must not overtake the ones of the same lane already queued.
+            if(isFlushed()) {
+                io.write(frame);
+
+                if(!frame.hasRemaining())
+                    return;
+
+                partial = frame;
+            } else if(control) {
+                controlQueue.add(frame);
+            } else {
+                writeQueue.add(frame);
+            }
+        } finally {
+            uploadLock.unlock();
+        }
+
+        loop.execute(() -> {
+            if(key.isValid())
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        });
+    }
+
+    /**
+     * @return Whether all the frames have been written. Must be called with the upload lock held.
+     */
+    private boolean isFlushed() {
+        return partial == null && controlQueue.isEmpty() && writeQueue.isEmpty();
+    }
+
+    /**
+     * Send a packet as a part of a given request. The calling thread is only blocked while the packet is
+     * being written - waiting for the response doesn't occupy any thread.
+     * @param id The request ID.
+     * @param p The packet.
+     * @return A promise finishing with the response, or failing if the packet couldn't be sent or the
+     *         connection has been lost before the response arrived.
+     */
+    private Promise<Packet, RemoteException> request(long id, Packet p) {
+        return request(id, p, false);
+    }
+
+    /**
+     * Send a packet as a part of a given request.
+     * @param id The request ID.
+     * @param p The packet.
+     * @param control Whether to send the packet on the control lane.
+     * @return A promise finishing with the response.
+     * @see #request(long, Packet)
+     * @see #write(long, Packet, boolean)
+     */
+    private Promise<Packet, RemoteException> request(long id, Packet p, boolean control) {
+        PendingRequest response = new PendingRequest(p);
+        pending.put(id, response);
+
+        int timeout = requestTimeout;
+
+        if(timeout > 0) {
+            response.timeout = server.getTimer().schedule(() -> {
+                if(pending.remove(id, response))
+                    Promise.getExecutor().execute(() -> response.fail(
+                            new RemoteException(RemoteException.Kind.TIMED_OUT, "Request timed out.")));
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        // The reader thread might have already failed all the pending requests.
+        if(!connected.get()) {
+            pending.remove(id);
+            response.cancelTimeout();
+            response.fail(new RemoteException(RemoteException.Kind.DISCONNECTED, "Not connected."));
+            return response;
+        }
+
+        try {
+            write(id, p, control);
+        } catch(IOException e) {
+            pending.remove(id);
+            response.cancelTimeout();
+            response.fail(new RemoteException(RemoteException.Kind.DISCONNECTED, "I/O exception.", e));
+        }
+
+        return response;
+    }
+
+    /**
+     * Send a packet as a new request.
+     * @see #request(long, Packet)
+     */
+    private Promise<Packet, RemoteException> request(Packet p) {
+        return request(requestIds.incrementAndGet(), p);
+    }
+
+    /**
+     * Collect the class bundle of a given class, leaving out the bytecode the client already holds.
+     * @param clz The class.
+     * @return The bundle to send.
+     * @throws RemoteException if the bytecode of the class can't be read.
+     */
+    private ClassBundle bundle(Class<?> clz) throws RemoteException {
+        try {
+            return ClassCollector.collect(clz).strip(knownHashes::contains);
+        } catch(IOException e) {
+            throw new RemoteException("Couldn't read the bytecode of " + clz.getName() + ".", e);
+        }
+    }
+
+    /**
+     * Remember that the client holds all the bytecode from a given bundle.
+     * @param bundle The bundle.
+     */
+    private void markKnown(ClassBundle bundle) {
+        bundle.getEntries().forEach(e -> knownHashes.add(e.getHash()));
+    }
+
+    /**
+     * Deserialize the payload of a response.
+     * @param response The response.
+     * @param loader The class loader used to resolve the classes of the payload.
+     * @return The payload.
+     * @throws RemoteException if the response isn't a PacketResponse, or the payload can't be deserialized.
+     */
+    private static Serializable payload(Packet response, ClassLoader loader) throws RemoteException {
+        if(!(response instanceof PacketResponse))
+            throw new RemoteException("Invalid packet.");
+
+        try {
+            return ((PacketResponse) response).getPayload(loader);
+        } catch(IOException | ClassNotFoundException e) {
+            throw new RemoteException("Couldn't deserialize the response.", e);
+        }
+    }
+
+    /**
+     * Turn a failure response to a chunk execution into an exception, telling apart the chunks which
+     * couldn't be instantiated from the chunks which failed while processing their input.
+     * @param response The response.
+     * @param loader The class loader used to resolve the classes of the exception.
+     * @return The exception.
+     */
+    private static RemoteException failure(Packet response, ClassLoader loader) {
+        Throwable cause = cause(response, loader);
+
+        if(cause instanceof ChunkInstantiationException)
+            return new RemoteException(RemoteException.Kind.INSTANTIATION, "Couldn't instantiate the chunk.",
+                    cause.getCause());
+
+        return new RemoteException(RemoteException.Kind.EXECUTION, "Execution failed.", cause);
+    }
+
+    /**
+     * Deserialize the exception carried by a failure response.
+     * @param response The response.
+     * @param loader The class loader used to resolve the classes of the exception.
+     * @return The exception, or the reason why it couldn't be deserialized.
+     */
+    private static Throwable cause(Packet response, ClassLoader loader) {
+        if(!(response instanceof PacketResponse))
+            return new RemoteException("Invalid packet.");
+
+        try {
+            return (Throwable) ((PacketResponse) response).getPayload(loader);
+        } catch(Exception e) {
+            return e;
+        }
+    }
+
+    /**
+     * Send a packet carrying the class bundle of a given class as a part of a given request.
+     * If the client reports that it doesn't hold some of the bytecode left out of the bundle (e.g. because it
+     * has been evicted), or doesn't remember some of the inputs sent by hash, the packet is built and sent
+     * once more with that bytecode or those inputs included. Both may happen, one after another.
+     * @param id The request ID.
+     * @param clz The class.
+     * @param packet Creates the packet from the bundle.
+     * @return A promise finishing with the response.
+     */
+    private Promise<Packet, RemoteException> requestCode(long id, Class<?> clz, Function<ClassBundle, Packet> packet) {
+        return requestCode(id, clz, packet, 2);
+    }
+
+    private Promise<Packet, RemoteException> requestCode(long id, Class<?> clz, Function<ClassBundle, Packet> packet,
+                                                         int retries) {
+        ClassBundle code;
+
+        try {
+            code = bundle(clz);
+        } catch(RemoteException e) {
+            return Deferred.failed(e);
+        }
+
+        return request(id, packet.apply(code)).thenCompose(response -> {
+            Object payload = response instanceof PacketResponse && !((PacketResponse) response).isSuccess()
+                    ? cause(response, Client.class.getClassLoader()) : null;
+
+            if(payload instanceof MissingBytecodeException) {
+                knownHashes.removeAll(((MissingBytecodeException) payload).getHashes());
+
+                if(retries > 0)
+                    return requestCode(id, clz, packet, retries - 1);
+            } else if(payload instanceof MissingPayloadException) {
+                // The input is checked before the bytecode, so nothing has been stored.
+                payloads.missed(((MissingPayloadException) payload).getHashes());
+
+                if(retries > 0)
+                    return requestCode(id, clz, packet, retries - 1);
+            } else {
+                // The client stores the bytecode as soon as it receives it.
+                markKnown(code);
+            }
+
+            return Deferred.finished(response);
+        }, RemoteException::thrown);
+    }
+
+    /**
+     * @return The ID of the client, unique within the server and stable for as long as the client is connected.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return The version of the JVM running on the remote machine, e.g. "17.0.2", or null until the handshake.
+     */
+    public String getJavaVersion() {
+        return javaVersion;
+    }
+
+    /**
+     * @return The vendor of the JVM running on the remote machine, or null until the handshake.
+     */
+    public String getJavaVendor() {
+        return javaVendor;
+    }
+
+    /**
+     * @return Whether the connection hasn't been lost or closed yet.
+     */
+    boolean isConnected() {
+        return connected.get();
+    }
+
+    /**
+     * Mark the client as queued in the idle queue of the registry.
+     * @return Whether it hasn't been queued yet.
+     */
+    boolean markIdleQueued() {
+        return idleQueued.compareAndSet(false, true);
+    }
+
+    /**
+     * Mark the client as taken off the idle queue of the registry.
+     */
+    void clearIdleQueued() {
+        idleQueued.set(false);
+    }
+
+    /**
+     * @return The amount of storage kilobytes available the remote machine.
+     */
+    public long getStorageKilobytes() {
+        return storage;
+    }
+
+    /**
+     * @return The amount of KiB of RAM available to the remote machine.
+     */
+    public long getRAMKiB() {
+        return ram;
+    }
+
+    /**
+     * @return The amount of processors available to the remote machine.
+     */
+    public int getCPUs() {
+        return processors;
+    }
+
+    /**
+     * @return The amount of chunks the remote machine can process at once.
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * @return The amount of chunks scheduled on the remote machine which haven't finished yet.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return The amount of slots of the remote machine which are not occupied by scheduled chunks.
+     *         Chunks scheduled beyond that are queued on the remote machine.
+     */
+    public int getFreeSlots() {
+        return Math.max(0, slots - outstanding.get());
+    }
+
+    /**
+     * @return The amount of chunk inputs sent to the client as just their hash, because the client has
+     *         received the same input recently.
+     */
+    public long getDedupHits() {
+        return payloads.getHits();
+    }
+
+    /**
+     * @return The amount of chunk inputs sent as just their hash, but which the client didn't remember,
+     *         so they had to be sent again in full.
+     */
+    public long getDedupMisses() {
+        return payloads.getMisses();
+    }
+
+    /**
+     * @return The amount of bytes which didn't have to be sent to the client thanks to the deduplication.
+     */
+    public long getDedupBytesSaved() {
+        return payloads.getBytesSaved();
+    }
+
+    /**
+     * @return The average time it takes to execute a chunk on the remote machine in milliseconds,
+     *         or zero if no chunk has finished yet.
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+    /**
+     * Fold a new sample into the latency average.
+     * @param nanos The time it took to execute a chunk.
+     */
+    private synchronized void recordLatency(long nanos) {
+        double millis = nanos / 1e6;
+        latency = latency == 0 ? millis : latency + LATENCY_WEIGHT * (millis - latency);
+    }
+
+    /**
+     * Return a promise which sends a PacketKeepalive to the client. Called by the heartbeat every heartbeat
+     * interval. The response is recorded as a heartbeat, and its round trip time is tracked.
+     * @return A promise finishing once the client answers, or failing if it answers with anything else.
+     */
+    public Promise<Boolean, RemoteException> isAlive() {
+        return new Promise<Boolean, RemoteException>() {
+            @Override
+            protected void onResolve() { }
+
+            @Override
+            protected void process() {
+                long sent = System.nanoTime();
+
+                // The keepalive doesn't wait for the queued uploads, so it's answered in time regardless of them.
+                request(requestIds.incrementAndGet(), new PacketKeepalive(), true).unwrap(response -> {
+                    if(response == null || response.getType() != PacketType.PACKET_KEEPALIVE) {
+                        // Not a heartbeat, so the failure detector grows suspicious if it keeps happening.
+                        fail(new RemoteException("Invalid packet."));
+                        return;
+                    }
+
+                    rtt.record((System.nanoTime() - sent) / 1e6);
+                    detector.heartbeat(System.currentTimeMillis());
+                    finish(true);
+                }).orElse(this::fail);
+            }
+        };
+    }
+
+    /**
+     * @return The suspicion level of the client - the negative decimal logarithm of the probability that
+     *         the client is alive and the next heartbeat is just late.
+     * @see PhiAccrualFailureDetector
+     */
+    public double getPhi() {
+        return detector.phi(System.currentTimeMillis());
+    }
+
+    /**
+     * @return Whether the client is suspected to have failed. The chunks submitted to the server aren't placed
+     *         on suspected clients, unless all the clients are suspected. A suspected client is either cleared
+     *         by the next heartbeat, or dropped once the suspicion grows.
+     */
+    public boolean isSuspected() {
+        return getPhi() >= suspectPhi;
+    }
+
+    /**
+     * Set the suspicion levels above which the client is suspected and dropped.
+     * @param suspect The level above which the client is suspected, <code>DEFAULT_SUSPECT_PHI</code> by default.
+     * @param dead The level above which the client is dropped, <code>DEFAULT_DEAD_PHI</code> by default.
+     * @throws RemoteException
+     */
+    public void setPhiThresholds(double suspect, double dead) throws RemoteException {
+        if(!(suspect > 0 && dead >= suspect))
+            throw new RemoteException("!(suspect > 0 && dead >= suspect)");
+
+        suspectPhi = suspect;
+        deadPhi = dead;
+    }
+
+    /**
+     * @return The smoothed round trip time of the keepalive messages in milliseconds, or zero until the first
+     *         one is answered. Unlike <code>getLatency</code>, it doesn't include any processing.
+     */
+    public double getRTT() {
+        return rtt.getAverage();
+    }
+
+    /**
+     * @param q The quantile, between 0 and 1 - e.g. 0.99 for the 99th percentile.
+     * @return The round trip time of the latest keepalive messages below which a given fraction of them falls,
+     *         in milliseconds.
+     */
+    public double getRTTPercentile(double q) {
+        return rtt.getPercentile(q);
+    }
+
+    /**
+     * Cancel a chunk. The promise fails right away, and the client is asked to interrupt the chunk - it's up to
+     * the chunk to stop once it's interrupted. The request is sent on the control lane, so it doesn't wait for
+     * the queued uploads.
+     *
+     * A chunk can be cancelled as soon as it's been scheduled, even before it's been sent to the client.
+     * The inputs of a batch are processed by a single request, so cancelling any of them cancels the whole batch.
+     * @param chunk The promise returned by <code>schedule</code>, <code>scheduleNew</code> or
+     *              <code>scheduleBatch</code>.
+     * @return Whether the chunk has been cancelled, i.e. it's been waited for.
+     */
+    public boolean cancel(Promise<?, RemoteException> chunk) {
+        Long id = cancellable.remove(chunk);
+
+        // The chunk has finished, or has been cancelled already.
+        if(id == null)
+            return false;
+
+        // The keys are the promises created by this client.
+        Deferred<?, RemoteException> result = (Deferred<?, RemoteException>) chunk;
+        RemoteException e = new RemoteException(RemoteException.Kind.CANCELLED, "The chunk has been cancelled.");
+
+        // A chunk which hasn't been sent yet never will be.
+        if(id != NOT_SENT) {
+            PendingRequest request = pending.remove(id);
+
+            if(request != null) {
+                request.cancelTimeout();
+
+                // Fails the rest of the batch as well.
+                Promise.getExecutor().execute(() -> request.fail(e));
+            }
+
+            try {
+                // The client doesn't answer the cancel packet.
+                write(requestIds.incrementAndGet(), new PacketCancel(id), true);
+            } catch(IOException ex) {
+                // The connection is lost, and the chunk with it.
+            }
+        }
+
+        Promise.getExecutor().execute(() -> result.fail(e));
+
+        return true;
+    }
+
+    /**
+     * Ask the client about its load. The request is sent on the control lane, and the client answers it
+     * even if all its worker threads are busy.
+     * @return A promise finishing with the telemetry of the client.
+     */
+    public Promise<PacketTelemetry, RemoteException> telemetry() {
+        return request(requestIds.incrementAndGet(), new PacketTelemetry(), true).thenCompose(response ->
+                response instanceof PacketTelemetry
+                        ? Deferred.finished((PacketTelemetry) response)
+                        : Deferred.failed(new RemoteException("Invalid packet.")), RemoteException::thrown);
+    }
+
+    /**
+     * Attempt at forcing a garbage collector cycle on the remote server.
+     * It's needed to ensure smooth reloading of classes.
+     * @return
+     */
+    public Promise<Boolean, RemoteException> forceGC() {
+        return new Promise<Boolean, RemoteException>() {
+            @Override
+            protected void onResolve() { }
+
+            @Override
+            protected void process() {
+                try {
+                    // The client doesn't answer GC requests.
+                    write(requestIds.incrementAndGet(), new PacketGC());
+                } catch(Exception e) {
+                    fail(new RemoteException("I/O Exception.", e));
+                    return;
+                }
+
+                finish(true);
+            }
+        };
+    }
+
+    /**
+     * Set the request timeout. Requests which haven't been answered within that time fail. The timeouts are
+     * enforced by the timer of the server, with a precision of its tick.
+     * @param millis The timeout in milliseconds. Zero disables the timeout.
+     * @throws RemoteException
+     */
+    public void setConnectionTimeout(int millis) throws RemoteException {
+        if(millis < 0)
+            throw new RemoteException("millis < 0");
+
+        requestTimeout = millis;
+    }
+
+    /**
+     * Set the heartbeat interval. A keepalive message is sent every interval in which nothing else has arrived
+     * from the client, and the client is suspected and dropped once its silence is suspicious enough, judging
+     * by the intervals between its responses so far. With regular responses, the client is suspected after
+     * about two intervals of silence, and dropped after about three.
+     * @param millis The interval in milliseconds.
+     * @throws RemoteException
+     * @see #setPhiThresholds(double, double)
+     */
+    public void setHeartbeatInterval(int millis) throws RemoteException {
+        if(millis <= 0)
+            throw new RemoteException("millis <= 0");
+
+        heartbeatInterval = millis;
+        detector = detector(millis);
+
+        // Apply the new interval right away, rather than after the one scheduled before.
+        synchronized(this) {
+            if(heartbeat != null)
+                scheduleHeartbeat(0);
+        }
+    }
 
     /**
-     * Cached amount of storage available in KB.
+     * @return The heartbeat interval in milliseconds.
      */
-    private long storage = 0;
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public Promise<Serializable, RemoteException> schedule(Class<? extends CodeChunk> clz, Serializable param) {
+        return execute(clz, param, false, Function.identity());
+    }
 
     /**
-     * Cached amount of RAM in KiB.
+     * Execute a chunk in a single round trip.
+     * @param clz The chunk.
+     * @param param The input data.
+     * @param isolated Whether the client should ignore the classes injected into modules.
+     * @param map Maps the result to the finish value of the promise. The promise itself is mapped, rather than
+     *            a continuation of it, so that it's the one the chunk can be cancelled by.
+     * @return A promise finishing with the mapped result.
      */
-    private long ram = 0;
+    private <X> Promise<X, RemoteException> execute(Class<? extends CodeChunk> clz, Serializable param,
+                                                   boolean isolated, Function<Serializable, X> map) {
+        Deferred<X, RemoteException> result = outstandingResult();
+        long start = System.nanoTime();
+
+        Promise.getExecutor().execute(() -> {
+            byte[] data;
+
+            try {
+                data = Serialization.serialize(param);
+            } catch(IOException e) {
+                result.fail(new RemoteException("Couldn't serialize the data.", e));
+                return;
+            }
+
+            // The chunk and its input travel together, and the client replies just once.
+            Function<ClassBundle, Packet> packet = code -> new PacketExecute(code, payloads.encode(data), isolated);
+            long id = requestIds.incrementAndGet();
+
+            // The chunk has been cancelled before it could be sent.
+            if(!cancellable.replace(result, NOT_SENT, id))
+                return;
+
+            requestCode(id, clz, packet).unwrap(response -> {
+                if(!(response instanceof PacketResponse)) {
+                    result.fail(new RemoteException("Invalid packet."));
+                    return;
+                }
+
+                if(!((PacketResponse) response).isSuccess()) {
+                    result.fail(failure(response, clz.getClassLoader()));
+                    return;
+                }
+
+                // The result can contain instances of the chunk's classes.
+                Serializable value;
+
+                try {
+                    value = payload(response, clz.getClassLoader());
+                } catch(RemoteException e) {
+                    result.fail(e);
+                    return;
+                }
+
+                recordLatency(System.nanoTime() - start);
+                result.finish(map.apply(value));
+            }).orElse(result::fail);
+        });
+
+        return result;
+    }
 
     /**
-     * Cached amount of processors available to the target machine.
+     * @return A promise for the result of a chunk, counted as outstanding until it's resolved, and cancellable
+     *         right away.
      */
-    private int processors = 0;
+    private <X> Deferred<X, RemoteException> outstandingResult() {
+        outstanding.incrementAndGet();
+
+        Deferred<X, RemoteException> result = new Deferred<X, RemoteException>() {
+            @Override
+            protected void onResolve() {
+                released();
+                cancellable.remove(this);
+            }
+        };
+
+        cancellable.put(result, NOT_SENT);
+        return result;
+    }
 
     /**
-     * Incenso server which owns the current client instance.
+     * Called when an outstanding chunk is resolved. Queues the client as idle once it has no more of them.
      */
-    private final IncensoServer server;
+    private void released() {
+        if(outstanding.decrementAndGet() == 0)
+            server.getRegistry().idle(this);
+    }
 
     /**
-     * A thread which periodically sends a keepalive message and disconnects the client
-     * from the pool as soon as it stops responding to pings.
+     * Schedule a chunk for many inputs at once, in a single round trip. The client processes the inputs
+     * in parallel.
+     * @param clz The chunk.
+     * @param params The input data.
+     * @return A promise for every input, in the same order. The promises are resolved separately, so that
+     *         a single failed input doesn't fail the others.
      */
-    private Thread keepaliveThread;
+    public List<Promise<Serializable, RemoteException>> scheduleBatch(Class<? extends CodeChunk> clz,
+                                                                     List<? extends Serializable> params) {
+        List<Serializable> inputs = new ArrayList<>(params);
+        List<Deferred<Serializable, RemoteException>> results = new ArrayList<>(inputs.size());
+
+        for(int i = 0; i < inputs.size(); i++)
+            results.add(outstandingResult());
+
+        Promise.getExecutor().execute(() -> executeBatch(clz, inputs, results));
+
+        return new ArrayList<>(results);
+    }
 
     /**
-     * A basic client constructor used by IncensoServer.
-     * @param parent IncensoServer which owns the current client.
-     * @param io Socket used as the main channel of communication between server and the remote.
-     * @throws RemoteException
+     * Schedule a chunk, gathering the chunks of the same class scheduled at about the same time into
+     * a single batch. The batch is sent as soon as the promise executor gets to it, or once it's full,
+     * so that the batching doesn't add any latency of its own.
+     * @param clz The chunk.
+     * @param param The input data.
+     * @return A promise finishing with the result.
+     * @see #scheduleBatch(Class, List)
      */
-    protected Client(IncensoServer parent, Socket io) throws RemoteException {
-        this.io = io;
-        this.server = parent;
+    Promise<Serializable, RemoteException> scheduleBatched(Class<? extends CodeChunk> clz, Serializable param) {
+        Deferred<Serializable, RemoteException> result = outstandingResult();
+        Batch full = null;
+        boolean first;
 
-        try {
-            out = new ObjectOutputStream(io.getOutputStream());
-            in = new ObjectInputStream(io.getInputStream());
-
-            resync().unwrap(x -> {
-                keepaliveThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        while(!keepaliveThread.isInterrupted()) {
-                            Client.this.isAlive()
-                                    .orElse(x -> { keepaliveThread.interrupt(); })
-                                    .resolve();
-
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException e) {
-                                return;
-                            }
-                        }
-                    }
-                }, "Client keepalive thread.");
+        synchronized(batches) {
+            Batch batch = batches.computeIfAbsent(clz, x -> new Batch());
+
+            batch.params.add(param);
+            batch.results.add(result);
+            first = batch.params.size() == 1;
+
+            if(batch.params.size() >= MAX_BATCH_SIZE) {
+                batches.remove(clz);
+                full = batch;
+            }
+        }
 
-                keepaliveThread.start();
-            }).orElse(x -> {
-                server.onDisconnect().broadcast(Client.this);
-                server.clientUnlink(Client.this);
+        if(full != null) {
+            Batch batch = full;
+            Promise.getExecutor().execute(() -> executeBatch(clz, batch.params, batch.results));
+        } else if(first) {
+            Promise.getExecutor().execute(() -> {
+                Batch batch;
+
+                synchronized(batches) {
+                    batch = batches.remove(clz);
+                }
+
+                // The batch might have filled up and been sent already.
+                if(batch != null)
+                    executeBatch(clz, batch.params, batch.results);
             });
-        } catch(IOException e) {
-            throw new RemoteException("Socket manipulation exception.", e);
-        } catch(Exception e) {
-            throw new RemoteException("Unhandled error.", e);
         }
-    }
 
-    /**
-     * @return The amount of storage kilobytes available the remote machine.
-     */
-    public long getStorageKilobytes() {
-        return storage;
+        return result;
     }
 
     /**
-     * @return The amount of KiB of RAM available to the remote machine.
+     * Send a batch to the client and resolve the promises of its inputs with the results.
+     * @param clz The chunk.
+     * @param params The input data.
+     * @param results The promises to resolve, one for every input.
      */
-    public long getRAMKiB() {
-        return ram;
+    private void executeBatch(Class<? extends CodeChunk> clz, List<Serializable> params,
+                              List<Deferred<Serializable, RemoteException>> results) {
+        List<byte[]> inputs = new ArrayList<>(params.size());
+        List<Deferred<Serializable, RemoteException>> sent = new ArrayList<>(params.size());
+        long id = requestIds.incrementAndGet();
+
+        for(int i = 0; i < params.size(); i++) {
+            // The input has been cancelled before it could be sent.
+            if(!cancellable.replace(results.get(i), NOT_SENT, id))
+                continue;
+
+            try {
+                inputs.add(Serialization.serialize(params.get(i)));
+                sent.add(results.get(i));
+            } catch(IOException e) {
+                results.get(i).fail(new RemoteException("Couldn't serialize the data.", e));
+            }
+        }
+
+        if(sent.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        ClassLoader loader = clz.getClassLoader();
+
+        requestCode(id, clz, code -> {
+            List<Payload> encoded = new ArrayList<>(inputs.size());
+
+            for(byte[] input : inputs)
+                encoded.add(payloads.encode(input));
+
+            return new PacketExecuteBatch(code, encoded);
+        }).unwrap(response -> {
+            if(!(response instanceof PacketBatchResponse)
+                    || ((PacketBatchResponse) response).getResponses().size() != sent.size()) {
+                // The chunk couldn't be loaded, so none of the inputs have been processed.
+                RemoteException e = response instanceof PacketResponse
+                        ? failure(response, loader)
+                        : new RemoteException("Invalid packet.");
+
+                sent.forEach(x -> x.fail(e));
+                return;
+            }
+
+            recordLatency(System.nanoTime() - start);
+
+            List<PacketResponse> responses = ((PacketBatchResponse) response).getResponses();
+
+            for(int i = 0; i < sent.size(); i++) {
+                PacketResponse r = responses.get(i);
+
+                if(!r.isSuccess()) {
+                    sent.get(i).fail(failure(r, loader));
+                    continue;
+                }
+
+                // The results can contain instances of the chunk's classes.
+                try {
+                    sent.get(i).finish(payload(r, loader));
+                } catch(RemoteException e) {
+                    sent.get(i).fail(e);
+                }
+            }
+        }).orElse(e -> sent.forEach(x -> x.fail(e)));
     }
 
     /**
-     * @return The amount of processors available to the remote machine.
+     * Execute a chunk once, isolated from the classes injected into modules. The client loads the chunk
+     * with an injector pooled by the hash of its bytecode, reused by the subsequent executions of the same
+     * chunk and reclaimed by the regular garbage collection once it's idle - nothing has to be uploaded,
+     * unlinked or collected explicitly.
+     * @param clz The chunk.
+     * @param param The input data.
+     * @return A promise finishing with true once the chunk has been executed.
      */
-    public int getCPUs() {
-        return processors;
+    public Promise<Boolean, RemoteException> scheduleNew(Class<? extends CodeChunk> clz, Serializable param) {
+        return execute(clz, param, true, x -> true);
     }
 
-    /**
-     * Return a promise which sends a PacketKeepalive to the client. Called periodically
-     * by the keepaliveThread. This procedure can result in removing the client from the client list.
-     * @return
-     */
-    public Promise<Boolean, RemoteException> isAlive() {
+    public Promise<Boolean, RemoteException> upload(String moduleName, Class<?> clz) {
         return new Promise<Boolean, RemoteException>() {
             @Override
-            protected void onResolve() {
-                uploadLock.unlock();
-            }
+            protected void onResolve() { }
 
             @Override
             protected void process() {
-                Packet response = null;
-
-                uploadLock.lock();
+                long id = requestIds.incrementAndGet();
 
-                try {
-                    out.writeObject(new PacketKeepalive());
-                    out.flush();
+                requestCode(id, clz, code -> new PacketInject(moduleName, code)).unwrap(response -> {
+                    if(!(response instanceof PacketResponse)) {
+                        fail(new RemoteException("Invalid packet."));
+                        return;
+                    }
 
-                    response = (Packet) in.readObject();
-                } catch(Exception e) {
-                    fail(new RemoteException("I/O Exception.", e));
-                    // Assume we've been disconnected.
-                    server.onDisconnect().broadcast(Client.this);
-                    server.clientUnlink(Client.this);
-                    return;
-                }
+                    if(!((PacketResponse) response).isSuccess()) {
+                        fail(new RemoteException("Injection wasn't acknowledged by the server.",
+                                cause(response, clz.getClassLoader())));
+                        return;
+                    }
 
-                if(response != null && response.getType() == PacketType.PACKET_KEEPALIVE)
+                    modules.add(moduleName);
                     finish(true);
-                else {
-                    fail(new RemoteException("Invalid packet."));
-                    // Assume we've been disconnected.
-                    server.onDisconnect().broadcast(Client.this);
-                    server.clientUnlink(Client.this);
-                }
+                }).orElse(this::fail);
             }
         };
     }
 
     /**
-     * Attempt at forcing a garbage collector cycle on the remote server.
-     * It's needed to ensure smooth reloading of classes.
-     * @return
+     * Store data on the client, so that the chunks executed on it can read it by key, instead of it being sent
+     * along with each of them. The client keeps the data in memory up to a budget, spills it to disk beyond that,
+     * and drops the least recently used data once the disk fills up as well.
+     * @param key The key.
+     * @param value The data.
+     * @return A promise finishing once the data has been stored.
+     * @see CodeChunk#process(Serializable, ChunkContext)
      */
-    public Promise<Boolean, RemoteException> forceGC() {
+    public Promise<Boolean, RemoteException> store(String key, Serializable value) {
         return new Promise<Boolean, RemoteException>() {
             @Override
-            protected void onResolve() {
-                uploadLock.unlock();
-            }
+            protected void onResolve() { }
 
             @Override
             protected void process() {
-                Packet response = null;
-
-                uploadLock.lock();
+                byte[] data;
 
                 try {
-                    out.writeObject(new PacketGC());
-                    out.flush();
-                } catch(Exception e) {
-                    fail(new RemoteException("I/O Exception.", e));
+                    data = Serialization.serialize(value);
+                } catch(IOException e) {
+                    fail(new RemoteException("Couldn't serialize the data.", e));
                     return;
                 }
 
-                finish(true);
+                requestStore(key, data).unwrap(this::finish).orElse(this::fail);
             }
         };
     }
 
-    public void setConnectionTimeout(int millis) throws RemoteException {
-        try {
-            io.setSoTimeout(millis);
-        } catch(SocketException e) {
-            throw new RemoteException("Couldn't set the connection timeout.", e);
-        } catch(IllegalArgumentException e) {
-            throw new RemoteException("millis <= 0", e);
-        }
+    /**
+     * Remove the data stored on the client under a given key.
+     * @param key The key.
+     * @return A promise finishing once the data has been removed.
+     */
+    public Promise<Boolean, RemoteException> discard(String key) {
+        return requestStore(key, null);
     }
 
-    public Promise<Serializable, RemoteException> schedule(Class<? extends CodeChunk> clz, Serializable param) {
-        return new Promise<Serializable, RemoteException>() {
-            @Override
-            protected void onResolve() {
-                uploadLock.unlock();
-            }
-
-            @Override
-            protected void process() {
-                Serializable obj = null;
+    /**
+     * Send a PacketStore, and keep track of the keys held by the client.
+     * @param key The key.
+     * @param data The serialized data, or null to remove it.
+     * @return A promise finishing once the client has answered.
+     */
+    private Promise<Boolean, RemoteException> requestStore(String key, byte[] data) {
+        return request(new PacketStore(key, data)).thenCompose(response -> {
+            if(!(response instanceof PacketResponse) || !((PacketResponse) response).isSuccess())
+                return Deferred.failed(new RemoteException("Couldn't store the data."));
 
-                uploadLock.lock();
+            List<?> dropped;
 
-                try {
-                    out.writeObject(new PacketExecute(clz.getName(), clz));
-                    out.flush();
+            try {
+                dropped = (List<?>) payload(response, Client.class.getClassLoader());
+            } catch(RemoteException | ClassCastException e) {
+                return Deferred.failed(new RemoteException("Invalid packet.", e));
+            }
 
-                    if (!in.readBoolean()) {
-                        fail(new RemoteException("Couldn't load the class.", (Throwable) in.readObject()));
-                        return;
-                    }
+            if(data != null)
+                storedKeys.add(key);
+            else
+                storedKeys.remove(key);
 
-                    out.writeObject(param);
-                    out.flush();
+            // Includes the key itself, if it didn't fit.
+            storedKeys.removeAll(dropped);
 
-                    if (!in.readBoolean()) {
-                        fail(new RemoteException("Execution failed.", (Throwable) in.readObject()));
-                        return;
-                    }
+            return Deferred.finished(true);
+        }, RemoteException::thrown);
+    }
 
-                    obj = (Serializable) in.readObject();
-                } catch(IOException e) {
-                    fail(new RemoteException("I/O exception.", e));
-                    return;
-                } catch (Exception e) {
-                    fail(new RemoteException("Unhandled error.", e));
-                    return;
-                }
+    /**
+     * @param key The key.
+     * @return Whether the client holds the data stored under a given key, as far as the server knows.
+     */
+    public boolean holds(String key) {
+        return storedKeys.contains(key);
+    }
 
-                finish(obj);
-            }
-        };
+    /**
+     * @return The keys of the data held by the client, as far as the server knows.
+     */
+    public Set<String> getStoredKeys() {
+        return Collections.unmodifiableSet(storedKeys);
     }
 
-    public Promise<Boolean, RemoteException> scheduleNew(Class<? extends CodeChunk> clz, Serializable param) {
+    /**
+     * Unlink a module from the client. The classes of the module are unloaded by the regular garbage collection
+     * of the client, which only requests a collection by itself if it's running short on Metaspace.
+     * @param moduleName The module.
+     * @return A promise finishing once the client confirms the classes of the module have been unloaded,
+     *         which may take a while, or failing if there's no such module.
+     */
+    public Promise<Boolean, RemoteException> unlink(String moduleName) {
         return new Promise<Boolean, RemoteException>() {
             @Override
-            protected void onResolve() {
-                uploadLock.unlock();
-            }
+            protected void onResolve() { }
 
             @Override
             protected void process() {
-                uploadLock.lock();
+                request(new PacketUnlink(moduleName)).unwrap(response -> {
+                    modules.remove(moduleName);
 
-                // TODO: Make it more readable, but how?
-                upload("_internal_scheduleNew", clz).unwrap(x ->
-                        schedule(clz, param).unwrap(y ->
-                                unlink("_internal_scheduleNew").unwrap(this::finish)
-                                        .orElse(this::fail).resolve()
-                        ).orElse(this::fail).resolve()
-                ).orElse(this::fail).resolve();
+                    if(response != null && response.getType() == PacketType.PACKET_UNLOADED)
+                        finish(true);
+                    else
+                        fail(new RemoteException("Couldn't unlink group."));
+                }).orElse(this::fail);
             }
         };
     }
 
-    public Promise<Boolean, RemoteException> upload(String moduleName, Class<?> clz) {
+    public Promise<Boolean, RemoteException> disconnect() {
         return new Promise<Boolean, RemoteException>() {
             @Override
-            protected void onResolve() {
-                uploadLock.unlock();
-            }
+            protected void onResolve() { }
 
             @Override
             protected void process() {
-                boolean uploadStatus;
-
-                uploadLock.lock();
+                // A detached client is just forgotten.
+                if(!connected.get() && server.expireSession(session, Client.this)) {
+                    terminate(new RemoteException(RemoteException.Kind.DISCONNECTED, "Disconnected."));
+                    finish(true);
+                    return;
+                }
 
                 try {
-                    out.writeObject(new PacketInject(clz.getName(), moduleName, clz));
-                    out.flush();
-                    uploadStatus = in.readBoolean();
+                    // The client doesn't answer the goodbye packet.
+                    write(requestIds.incrementAndGet(), new PacketGoodbye());
                 } catch(Exception e) {
-                    fail(new RemoteException("I/O exception", e));
+                    fail(new RemoteException("I/O Exception.", e));
                     return;
                 }
 
-                if(!uploadStatus) {
-                    fail(new RemoteException("Injection wasn't acknowledged by the server."));
-                    return;
+                // Close the connection once the goodbye packet has been written.
+                uploadLock.lock();
+
+                try {
+                    closing = true;
+
+                    if(isFlushed())
+                        drop(new RemoteException(RemoteException.Kind.DISCONNECTED, "Disconnected."));
+                } finally {
+                    uploadLock.unlock();
                 }
 
                 finish(true);
@@ -313,102 +1615,204 @@ public class Client {
         };
     }
 
-    public Promise<Boolean, RemoteException> unlink(String moduleName) {
-        return new Promise<Boolean, RemoteException>() {
-            @Override
-            protected void onResolve() {
-                uploadLock.unlock();
+    /**
+     * @return The handshake packet sent to the client.
+     */
+    private PacketHandshake handshakePacket() {
+        return new PacketHandshake(
+                System.getProperty("java.version"),
+                System.getProperty("java.vendor"),
+                -1, -1, -1, -1, Collections.emptySet(),
+                server.getCompressionThreshold(), session, Collections.emptySet(), Collections.emptySet());
+    }
+
+    /**
+     * Take over the specs of the client from its handshake.
+     */
+    private void apply(PacketHandshake obj) {
+        processors = obj.getCPUs();
+        slots = obj.getSlots();
+        knownHashes.addAll(obj.getBytecodeHashes());
+        compressionThreshold = obj.getCompressionThreshold();
+        storage = obj.getStorageSize();
+        ram = obj.getMaxRAM();
+        javaVersion = obj.jvmVersion();
+        javaVendor = obj.jvmVendor();
+
+        modules.retainAll(obj.getModules());
+        modules.addAll(obj.getModules());
+    }
+
+    /**
+     * Do the initial handshake of a new connection. If the client presents the token of a session held by
+     * the server, the connection is moved over to that session and this client is discarded. Otherwise,
+     * the client is announced to the server.
+     */
+    private void handshake() {
+        request(handshakePacket()).unwrap(response -> {
+            if(!(response instanceof PacketHandshake)) {
+                drop(new RemoteException("Invalid packet."));
+                return;
             }
 
-            @Override
-            protected void process() {
-                uploadLock.lock();
+            PacketHandshake obj = (PacketHandshake) response;
 
-                try {
-                    out.writeObject(new PacketUnlink(moduleName));
-                    out.flush();
+            if(obj.getProtocolVersion() != Version.PROTOCOL) {
+                drop(new RemoteException("Protocol version mismatch; got " + Version.PROTOCOL
+                        + ", the client has " + obj.getProtocolVersion() + "."));
+                return;
+            }
 
-                    if(in.readBoolean()) {
-                        // Trigger a GC cycle to ensure the classes have been unlinked.
-                        forceGC().orElse(this::fail).unwrap(this::finish).resolve();
-                    } else {
-                        fail(new RemoteException("Couldn't unlink group."));
-                    }
-                } catch(Exception e) {
-                    fail(new RemoteException("I/O exception", e));
-                }
+            Client previous = obj.getSession().equals(session) ? null : server.resumeSession(obj.getSession());
+
+            if(previous != null) {
+                previous.rebind(this, obj);
+                return;
             }
-        };
+
+            // A session the server doesn't hold anymore, e.g. because it has expired, is started anew.
+            if(!obj.getSession().isEmpty())
+                session = obj.getSession();
+
+            apply(obj);
+
+            // The client may still be working on the requests of the previous session, and answer them later on.
+            // Their IDs are never reused, so that the answers are dropped rather than taken for the answers to
+            // the requests of this session.
+            for(long id : obj.getInflight())
+                requestIds.accumulateAndGet(id, Math::max);
+
+            try {
+                // The client doesn't wait for any responses held back from a previous session, and stops
+                // processing the chunks nobody waits for anymore.
+                write(requestIds.incrementAndGet(), new PacketResume(Collections.emptySet()));
+
+                for(long id : obj.getInflight())
+                    write(requestIds.incrementAndGet(), new PacketCancel(id), true);
+            } catch(IOException e) {
+                drop(new RemoteException(RemoteException.Kind.DISCONNECTED, "I/O exception.", e));
+                return;
+            }
+
+            announced = true;
+            scheduleHeartbeat(heartbeatInterval);
+            server.clientReady(this);
+        }).orElse(this::drop);
     }
 
-    public Promise<Boolean, RemoteException> disconnect() {
-        return new Promise<Boolean, RemoteException>() {
-            @Override
-            protected void onResolve() {
+    /**
+     * Resume the session of this detached client over the connection of a given client, which has just
+     * presented the session token. Runs on the I/O thread of the new connection, so that no frames are read
+     * while the connection is moved over.
+     * @param fresh The client which has accepted the new connection. It's discarded.
+     * @param obj Its handshake.
+     */
+    private void rebind(Client fresh, PacketHandshake obj) {
+        synchronized(this) {
+            if(expiry != null)
+                expiry.cancel();
+        }
+
+        fresh.loop.execute(() -> {
+            // The connection stays open; it's just not served by the discarded client anymore.
+            fresh.connected.set(false);
+
+            uploadLock.lock();
+
+            try {
+                io = fresh.io;
+                loop = fresh.loop;
+                key = fresh.key;
+                readBuffer = fresh.readBuffer;
+
+                // These have been meant for the lost connection; the requests still pending are answered below.
+                writeQueue.clear();
+                controlQueue.clear();
+                partial = null;
+                closing = false;
+            } finally {
                 uploadLock.unlock();
             }
 
-            @Override
-            protected void process() {
-                uploadLock.lock();
+            key.attach((EventLoop.Handler) this::ready);
 
-                try {
-                    out.writeObject(new PacketGoodbye());
-                    out.flush();
+            // The history of the lost connection doesn't tell anything about the new one.
+            detector = detector(heartbeatInterval);
+            heartbeatPending.set(false);
+            connected.set(true);
 
-                    out.close();
-                    in.close();
+            apply(obj);
 
-                    io.close();
+            // A request the client doesn't know of has either never reached it, or been answered over the lost
+            // connection - there's no telling whether it's been processed, so it fails rather than being sent
+            // again and possibly processed twice.
+            RemoteException lost = new RemoteException(RemoteException.Kind.DISCONNECTED,
+                    "The connection has been lost before the response arrived.");
 
-                    server.onDisconnect().broadcast(Client.this);
-                    server.clientUnlink(Client.this);
-                } catch(Exception e) {
-                    fail(new RemoteException("I/O Exception.", e));
-                    return;
+            for(Map.Entry<Long, PendingRequest> e : pending.entrySet()) {
+                PendingRequest request = e.getValue();
+
+                if(!obj.getInflight().contains(e.getKey()) && pending.remove(e.getKey(), request)) {
+                    request.cancelTimeout();
+                    Promise.getExecutor().execute(() -> request.fail(lost));
                 }
+            }
 
-                finish(true);
+            try {
+                // Ask for the responses held back by the client, then tell it to stop processing the chunks
+                // which have been retried elsewhere in the meantime.
+                write(requestIds.incrementAndGet(), new PacketResume(new ArrayList<>(pending.keySet())));
+
+                for(long id : obj.getInflight())
+                    if(!pending.containsKey(id))
+                        write(requestIds.incrementAndGet(), new PacketCancel(id), true);
+            } catch(IOException e) {
+                drop(new RemoteException(RemoteException.Kind.DISCONNECTED, "I/O exception.", e));
+                return;
             }
-        };
+
+            scheduleHeartbeat(heartbeatInterval);
+            server.clientResumed(this);
+        });
+    }
+
+    /**
+     * @return The token of the session.
+     */
+    String getSession() {
+        return session;
+    }
+
+    /**
+     * @return The modules the client holds. A module which the client still holds after reconnecting
+     *         doesn't need to be uploaded again.
+     */
+    public Set<String> getModules() {
+        return Collections.unmodifiableSet(modules);
     }
 
     public Promise<Boolean, RemoteException> resync() {
         return new Promise<Boolean, RemoteException>() {
             @Override
             protected void onResolve() {
-                uploadLock.unlock();
-                synchronizeLock.unlock();
+                synchronizeLock.release();
             }
 
             @Override
             protected void process() {
-                synchronizeLock.lock();
-                uploadLock.lock();
+                synchronizeLock.acquireUninterruptibly();
 
-                try {
-                    out.writeObject(new PacketHandshake(
-                            System.getProperty("java.version"),
-                            System.getProperty("java.vendor"),
-                            -1, -1, -1));
-                    out.flush();
-
-                    PacketHandshake obj = ((PacketHandshake) in.readObject());
-                    Client.this.processors = obj.getCPUs();
-                    Client.this.storage = obj.getStorageSize();
-                    Client.this.ram = obj.getMaxRAM();
-                } catch(IOException e) {
-                    fail(new RemoteException("I/O exception.", e));
-                    return;
-                } catch(ClassNotFoundException e) {
-                    fail(new RemoteException("Class not found on the remote machine.", e));
-                    return;
-                } catch(Exception e) {
-                    fail(new RemoteException("Unhandled exception.", e));
-                    return;
-                }
+                request(handshakePacket()).unwrap(response -> {
+                    if(!(response instanceof PacketHandshake)) {
+                        fail(new RemoteException("Invalid packet."));
+                        return;
+                    }
 
-                finish(true);
+                    apply((PacketHandshake) response);
+                    server.clientUpdated(Client.this);
+
+                    finish(true);
+                }).orElse(this::fail);
             }
         };
     }
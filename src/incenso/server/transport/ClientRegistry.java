@@ -0,0 +1,471 @@
+package incenso.server.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * The clients connected to a server, indexed by their ID and their attributes.
+ *
+ * Every client gets an ID unique within the server, which never changes. The clients can be looked up
+ * by the amount of RAM, processors and storage, the Java version and custom labels. All the lookups and
+ * updates are lock-free - connecting and disconnecting clients never blocks the scheduling.
+ *
+ * A client is registered once it's done the handshake, and unregistered as soon as its connection is lost,
+ * even if the server holds its session - it keeps its ID and its labels if it resumes the session.
+ * The lookups are weakly consistent, just like iterating over a concurrent collection.
+ *
+ * @see IncensoServer#getRegistry()
+ */
+public class ClientRegistry {
+    /**
+     * An index key - the value of an attribute, with the client ID as the tie breaker.
+     */
+    private static class Key {
+        final long value;
+        final long id;
+
+        Key(long value, long id) {
+            this.value = value;
+            this.id = id;
+        }
+    }
+
+    private static final Comparator<Key> KEY_ORDER =
+            Comparator.<Key>comparingLong(k -> k.value).thenComparingLong(k -> k.id);
+
+    /**
+     * An index of the clients sorted by an attribute.
+     */
+    private static class Index {
+        final ToLongFunction<Client> attribute;
+
+        final ConcurrentSkipListMap<Key, Client> entries = new ConcurrentSkipListMap<>(KEY_ORDER);
+
+        Index(ToLongFunction<Client> attribute) {
+            this.attribute = attribute;
+        }
+
+        /**
+         * @return The clients with the attribute of at least a given value, in ascending order.
+         */
+        List<Client> atLeast(long value) {
+            return new ArrayList<>(entries.tailMap(new Key(value, Long.MIN_VALUE)).values());
+        }
+    }
+
+    /**
+     * A registered client, together with the attribute values it's currently indexed under.
+     */
+    private static class Entry {
+        final Client client;
+
+        final Set<String> labels = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The indexed attribute values, in the order of <code>indexes</code>. Null until the client is indexed.
+         * Guarded by the entry's monitor, together with <code>removed</code>.
+         */
+        long[] indexed;
+
+        boolean removed = false;
+
+        Entry(Client client) {
+            this.client = client;
+        }
+    }
+
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * The registered clients, keyed by ID, so in the order they have connected.
+     */
+    private final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+
+    /**
+     * The amount of registered clients. Counting the entries of a skip list takes linear time.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * The total amount of processors of the indexed clients.
+     */
+    private final AtomicLong cpus = new AtomicLong();
+
+    private final Index byRAM = new Index(Client::getRAMKiB);
+    private final Index byCPUs = new Index(Client::getCPUs);
+    private final Index byStorage = new Index(Client::getStorageKilobytes);
+    private final Index byJavaVersion = new Index(c -> javaVersion(c.getJavaVersion()));
+
+    private final Index[] indexes = { byRAM, byCPUs, byStorage, byJavaVersion };
+
+    /**
+     * The position of <code>byCPUs</code> in <code>indexes</code>.
+     */
+    private static final int CPUS = 1;
+
+    /**
+     * The clients carrying a given label.
+     */
+    private final ConcurrentHashMap<String, Set<Client>> byLabel = new ConcurrentHashMap<>();
+
+    /**
+     * The labels of the clients which have been detached, keyed by the client ID. They're attached again
+     * once the client resumes its session.
+     */
+    private final ConcurrentHashMap<Long, Set<String>> detached = new ConcurrentHashMap<>();
+
+    /**
+     * Clients which have had no outstanding chunks since they were queued. A client is queued at most
+     * once at a time, and skipped when it's polled if it's been disconnected or become busy since.
+     */
+    private final ConcurrentLinkedQueue<Client> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Bumped after every registration and unregistration.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * A list of the registered clients, as of a given version.
+     */
+    private static class Snapshot {
+        final long version;
+        final List<Client> clients;
+
+        Snapshot(long version, List<Client> clients) {
+            this.version = version;
+            this.clients = clients;
+        }
+    }
+
+    /**
+     * The last list of the registered clients, rebuilt lazily once the clients change.
+     */
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+    ClientRegistry() { }
+
+    /**
+     * @return A new client ID.
+     */
+    long nextId() {
+        return ids.incrementAndGet();
+    }
+
+    /**
+     * Register a client, indexing the attributes it already has.
+     */
+    void register(Client c) {
+        Entry e = new Entry(c);
+
+        if(entries.putIfAbsent(c.getId(), e) != null)
+            return;
+
+        count.incrementAndGet();
+        version.incrementAndGet();
+
+        // The client unlinks itself when it's dropped, which might have happened before it's been registered.
+        if(!c.isConnected()) {
+            unregister(c);
+            return;
+        }
+
+        reindex(e);
+
+        Set<String> labels = detached.remove(c.getId());
+
+        if(labels != null)
+            for(String label : labels)
+                label(c, label);
+
+        idle(c);
+    }
+
+    /**
+     * Unregister a client whose session is held by the server, keeping its labels until it's registered again.
+     * @return Whether the client has been registered.
+     */
+    boolean detach(Client c) {
+        Entry e = entries.get(c.getId());
+
+        if(e == null || !unregister(c))
+            return false;
+
+        detached.put(c.getId(), new HashSet<>(e.labels));
+        return true;
+    }
+
+    /**
+     * Unregister a client, removing it from all the indexes.
+     * @return Whether the client has been registered.
+     */
+    boolean unregister(Client c) {
+        detached.remove(c.getId());
+
+        Entry e = entries.remove(c.getId());
+
+        if(e == null)
+            return false;
+
+        count.decrementAndGet();
+        version.incrementAndGet();
+
+        synchronized(e) {
+            e.removed = true;
+            unindex(e);
+
+            for(String label : e.labels)
+                unlabel(label, c);
+        }
+
+        return true;
+    }
+
+    /**
+     * Index the client under its current attribute values. Called once the handshake is done.
+     */
+    void update(Client c) {
+        Entry e = entries.get(c.getId());
+
+        if(e != null)
+            reindex(e);
+    }
+
+    private void reindex(Entry e) {
+        synchronized(e) {
+            if(e.removed)
+                return;
+
+            unindex(e);
+
+            long id = e.client.getId();
+            e.indexed = new long[indexes.length];
+
+            for(int i = 0; i < indexes.length; i++) {
+                e.indexed[i] = indexes[i].attribute.applyAsLong(e.client);
+                indexes[i].entries.put(new Key(e.indexed[i], id), e.client);
+            }
+
+            cpus.addAndGet(e.indexed[CPUS]);
+        }
+    }
+
+    private void unindex(Entry e) {
+        if(e.indexed == null)
+            return;
+
+        long id = e.client.getId();
+
+        for(int i = 0; i < indexes.length; i++)
+            indexes[i].entries.remove(new Key(e.indexed[i], id));
+
+        cpus.addAndGet(-e.indexed[CPUS]);
+        e.indexed = null;
+    }
+
+    /**
+     * Queue a client which has just run out of outstanding chunks, unless it's already queued.
+     */
+    void idle(Client c) {
+        if(c.markIdleQueued())
+            idle.add(c);
+    }
+
+    /**
+     * Remove all the clients.
+     */
+    void clear() {
+        for(Entry e : entries.values())
+            unregister(e.client);
+
+        detached.clear();
+        idle.clear();
+    }
+
+    /**
+     * @return The client with a given ID, or null if there's no such client connected.
+     */
+    public Client get(long id) {
+        Entry e = entries.get(id);
+        return e == null ? null : e.client;
+    }
+
+    /**
+     * @return The amount of connected clients.
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * @return The total amount of processors of the connected clients.
+     */
+    public long getTotalCPUs() {
+        return cpus.get();
+    }
+
+    /**
+     * @return An unmodifiable list of the connected clients, in the order they have connected. The list isn't
+     *         copied as long as no client connects or disconnects, so it's cheap to call it on every scheduling.
+     */
+    public List<Client> clients() {
+        Snapshot s = snapshot;
+        long v = version.get();
+
+        if(s.version == v)
+            return s.clients;
+
+        // Built from at least the state as of v; a stale list stored concurrently is rebuilt by the next call.
+        List<Client> list = new ArrayList<>(entries.size());
+
+        for(Entry e : entries.values())
+            list.add(e.client);
+
+        list = Collections.unmodifiableList(list);
+        snapshot = new Snapshot(v, list);
+        return list;
+    }
+
+    /**
+     * @return The clients with at least a given amount of RAM, from the smallest amount up.
+     */
+    public List<Client> withRAMAtLeast(long kib) {
+        return byRAM.atLeast(kib);
+    }
+
+    /**
+     * @return The clients with at least a given amount of processors, from the smallest amount up.
+     */
+    public List<Client> withCPUsAtLeast(int cpus) {
+        return byCPUs.atLeast(cpus);
+    }
+
+    /**
+     * @return The clients with at least a given amount of storage, from the smallest amount up.
+     */
+    public List<Client> withStorageAtLeast(long kilobytes) {
+        return byStorage.atLeast(kilobytes);
+    }
+
+    /**
+     * @return The clients running at least a given feature release of Java (e.g. 17), from the oldest one up.
+     */
+    public List<Client> withJavaVersionAtLeast(int feature) {
+        return byJavaVersion.atLeast(feature);
+    }
+
+    /**
+     * @return The clients carrying a given label.
+     */
+    public List<Client> withLabel(String label) {
+        Set<Client> set = byLabel.get(label);
+        return set == null ? new ArrayList<>() : new ArrayList<>(set);
+    }
+
+    /**
+     * Attach a label to a client, e.g. "gpu", so that it can be looked up by it.
+     * @return Whether the label has been attached, i.e. the client is connected and didn't carry it yet.
+     */
+    public boolean label(Client c, String label) {
+        Entry e = entries.get(c.getId());
+
+        if(e == null)
+            return false;
+
+        synchronized(e) {
+            if(e.removed || !e.labels.add(label))
+                return false;
+
+            byLabel.computeIfAbsent(label, x -> ConcurrentHashMap.newKeySet()).add(c);
+            return true;
+        }
+    }
+
+    /**
+     * Detach a label from a client.
+     * @return Whether the client has carried the label.
+     */
+    public boolean unlabel(Client c, String label) {
+        Entry e = entries.get(c.getId());
+
+        if(e == null)
+            return false;
+
+        synchronized(e) {
+            if(e.removed || !e.labels.remove(label))
+                return false;
+
+            unlabel(label, c);
+            return true;
+        }
+    }
+
+    private void unlabel(String label, Client c) {
+        byLabel.computeIfPresent(label, (k, set) -> {
+            set.remove(c);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * @return The labels carried by a client.
+     */
+    public Set<String> getLabels(Client c) {
+        Entry e = entries.get(c.getId());
+        return e == null ? Collections.emptySet() : Collections.unmodifiableSet(e.labels);
+    }
+
+    /**
+     * Find the client which has been idle for the longest time, i.e. has had no outstanding chunks.
+     * The client stays at the head of the idle queue until a chunk is scheduled on it, so it's found again
+     * if the caller doesn't schedule anything. Concurrent callers may find the same client.
+     * @return The client, or null if no client is idle.
+     */
+    public Client nextIdle() {
+        Client c;
+
+        while((c = idle.peek()) != null) {
+            if(entries.containsKey(c.getId()) && c.getOutstanding() == 0)
+                return c;
+
+            // It's been disconnected or become busy in the meantime. A busy client is queued again once it's
+            // idle - the flag is cleared before checking again, so that's never missed.
+            if(idle.remove(c)) {
+                c.clearIdleQueued();
+
+                if(entries.containsKey(c.getId()) && c.getOutstanding() == 0)
+                    idle(c);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Parse the feature release out of a Java version string, e.g. 8 out of "1.8.0_292" and 17 out of "17.0.2".
+     * @return The feature release, or zero if it's unknown.
+     */
+    static long javaVersion(String version) {
+        if(version == null)
+            return 0;
+
+        String[] parts = version.split("[^0-9]+");
+
+        try {
+            int first = parts.length > 0 && !parts[0].isEmpty() ? Integer.parseInt(parts[0]) : 0;
+            return first == 1 && parts.length > 1 ? Integer.parseInt(parts[1]) : first;
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package incenso.server.transport;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An I/O thread multiplexing many non-blocking channels using a selector.
+ * IncensoServer runs a small number of these, and every client connection is bound to one of them.
+ *
+ * Handlers are called on the loop thread, so they must never block.
+ *
+ * @see IncensoServer
+ */
+class EventLoop implements Runnable {
+    /**
+     * Called on the loop thread when a channel is ready for the operations it's interested in.
+     */
+    interface Handler {
+        void ready(SelectionKey key);
+    }
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    /**
+     * Tasks to be run on the loop thread, e.g. registering new channels.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+
+        // Idle I/O threads shouldn't keep the JVM alive.
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task on the loop thread, soon.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Register a channel with this loop. Must be called on the loop thread.
+     * @return The selection key of the channel.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Stop the loop, closing the selector. Channels registered with it aren't closed.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while(running) {
+            try {
+                selector.select();
+            } catch(IOException e) {
+                break;
+            }
+
+            Runnable task;
+
+            while((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    // A failing task mustn't take down the other channels, e.g. if a key has been cancelled.
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while(it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                try {
+                    if(key.isValid())
+                        ((Handler) key.attachment()).ready(key);
+                } catch(RuntimeException e) {
+                    // The key has been cancelled in the meantime.
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch(IOException e) {
+            // Nothing to do about it.
+        }
+    }
+}
@@ -1,63 +1,148 @@
 package incenso.server.transport;
 
+import incenso.common.CodeChunk;
+import incenso.common.FrameCodec;
+import incenso.server.util.Deferred;
 import incenso.server.util.EventDispatcher;
+import incenso.server.util.HashedWheelTimer;
+import incenso.server.util.Promise;
+import incenso.server.util.RemoteException;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * IncensoServer is responsible for two things:
  * <ul>
  *     <li>Accepting new connections and registering them.</li>
  *     <li>Providing event-driven interface regarding connections and disconnections.</li>
- *     <li>Providing generalized access to all the clients.</li>
+ *     <li>Providing generalized access to all the clients, indexed by their attributes.</li>
+ *     <li>Placing the submitted chunks on the clients, according to a placement policy.</li>
  * </ul>
  *
- * TODO: Granular access to clients.
- *
  * @author Kamila Szewczyk
  * @see Client
  * @see EventDispatcher
+ * @see PlacementPolicy
+ * @see ClientRegistry
  */
 public class IncensoServer {
     /**
-     * A server socket instance, from which we will accept connections.
+     * A server socket channel, from which we will accept connections.
+     */
+    private ServerSocketChannel s;
+
+    /**
+     * The I/O threads. The first one also accepts the connections; the accepted ones are spread
+     * over all of them in a round-robin fashion.
      */
-    private ServerSocket s;
+    private EventLoop[] loops;
 
     /**
-     * The poller thread, which will accept connections from the server socket.
-     * A handle to it is needed to be able to gracefully interrupt and quit it.
+     * The index of the I/O thread the next connection will be bound to.
      */
-    private Thread poller;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
     /**
-     * A list of connected clients.
+     * The timer driving the heartbeats and request timeouts of all the clients.
      */
-    private ArrayList<Client> clients;
+    private final HashedWheelTimer timer = new HashedWheelTimer("Incenso timer thread.");
 
     /**
-     * A lock to ensure no parallel accesses to the list.
+     * The connected clients.
      */
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ClientRegistry registry = new ClientRegistry();
 
     /**
      * The connection backlog - how many connections do we queue before dropping them.
-     * The backlog can be left small because the connection overhead is quite low - creating
-     * a Client instance is instant, because Client uses unresolved promises to ensure it's fully
-     * asynchronous
+     * Accepting a connection is cheap, but large numbers of workers tend to connect all at once,
+     * e.g. when a cluster is started, so the backlog has to absorb the bursts.
+     */
+    private static final int SERVER_BACKLOG = 1024;
+
+    /**
+     * How many times a mapped chunk is retried on another client, if its client disconnects.
+     */
+    private static final int MAP_RETRIES = 3;
+
+    /**
+     * The default amount of I/O threads. A few threads are enough to serve thousands of connections.
+     */
+    private static final int DEFAULT_IO_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The default amount of operations a broadcast keeps in flight at once.
+     */
+    public static final int DEFAULT_BROADCAST_CONCURRENCY = 64;
+
+    /**
+     * Frames larger than that many bytes are compressed, unless the client refuses it.
+     */
+    private volatile int compressionThreshold = 1024;
+
+    /**
+     * The default time a lost client is waited for, in milliseconds.
+     */
+    public static final long DEFAULT_SESSION_GRACE = 30000;
+
+    /**
+     * How long the session of a lost client is held, so that it can reconnect and resume it.
+     */
+    private volatile long sessionGrace = DEFAULT_SESSION_GRACE;
+
+    /**
+     * The sessions of the lost clients, keyed by the session token. A client is removed by whoever
+     * resumes or ends its session.
+     */
+    private final ConcurrentHashMap<String, Client> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * The policy used to place the submitted chunks.
+     */
+    private volatile PlacementPolicy placementPolicy = PlacementPolicies.leastOutstanding();
+
+    /**
+     * A wait for a membership condition, finishing with the clients once the condition is met.
+     */
+    private static class MembershipWait extends Deferred<List<Client>, RemoteException> {
+        final Predicate<? super ClientRegistry> condition;
+
+        volatile HashedWheelTimer.Timeout timeout;
+
+        MembershipWait(Predicate<? super ClientRegistry> condition) {
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * The pending membership waits. Checked whenever a client connects, disconnects or finishes the handshake.
      */
-    private static final int SERVER_BACKLOG = 8;
+    private final Set<MembershipWait> waits = ConcurrentHashMap.newKeySet();
 
     private EventDispatcher<Client> evtOnConnect = new EventDispatcher<>();
     private EventDispatcher<Client> evtOnDisconnect = new EventDispatcher<>();
 
     /**
-     * @return the onConnect event dispatcher.
+     * @return the onConnect event dispatcher. Its handlers are called once the client has done the handshake,
+     *         on the promise executor thread which has processed the handshake response, by default. A slow
+     *         handler holds up that thread, so it can be made asynchronous with <code>dispatchAsync</code>.
      */
     public EventDispatcher<Client> onConnect() { return evtOnConnect; }
 
@@ -66,37 +151,345 @@ public class IncensoServer {
      */
     public EventDispatcher<Client> onDisconnect() { return evtOnDisconnect; }
 
+    /**
+     * Set the compression threshold proposed to the clients connecting from now on.
+     * @param bytes Frames with payloads larger than that many bytes are compressed.
+     *              <code>FrameCodec.COMPRESSION_DISABLED</code> disables the compression.
+     */
+    public void setCompressionThreshold(int bytes) {
+        if(bytes < 0 && bytes != FrameCodec.COMPRESSION_DISABLED)
+            throw new IllegalArgumentException("Invalid compression threshold: " + bytes);
+
+        compressionThreshold = bytes;
+    }
+
+    /**
+     * @return The compression threshold proposed to the connecting clients.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Set how long the session of a lost client is held. A client reconnecting within that time resumes
+     * its session - it keeps its ID and labels, the responses it holds back are delivered, and the modules it
+     * holds don't have to be uploaded again. Otherwise, the client is dropped once the time is up. The chunks
+     * the client is processing don't wait for it either way - they fail as soon as the connection is lost.
+     * @param millis The grace period in milliseconds, or zero to drop lost clients right away.
+     */
+    public void setSessionGrace(long millis) {
+        if(millis < 0)
+            throw new IllegalArgumentException("millis < 0");
+
+        sessionGrace = millis;
+    }
+
+    /**
+     * @return How long the session of a lost client is held, in milliseconds.
+     */
+    public long getSessionGrace() {
+        return sessionGrace;
+    }
+
+    /**
+     * Set the policy used to place the chunks submitted from now on.
+     * @param policy The policy.
+     * @see PlacementPolicies
+     */
+    public void setPlacementPolicy(PlacementPolicy policy) {
+        if(policy == null)
+            throw new IllegalArgumentException("policy == null");
+
+        placementPolicy = policy;
+    }
+
+    /**
+     * @return The policy used to place the submitted chunks.
+     */
+    public PlacementPolicy getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    /**
+     * Schedule a chunk on one of the clients, chosen by the placement policy. Chunks of the same class
+     * submitted at about the same time to the same client are sent to it in a single batch. The clients
+     * suspected to have failed are passed over, unless all of them are.
+     * @param clz The chunk.
+     * @param param The input data.
+     * @return A promise finishing with the result, or failing if there are no clients or the execution failed.
+     * @see Client#schedule(Class, Serializable)
+     * @see Client#isSuspected()
+     */
+    public Promise<Serializable, RemoteException> submit(Class<? extends CodeChunk> clz, Serializable param) {
+        List<Client> clients = healthy(registry.clients());
+        Client target = clients.isEmpty() ? null : placementPolicy.choose(clients);
+
+        if(target == null)
+            return Deferred.failed(new RemoteException("No clients connected."));
+
+        return target.scheduleBatched(clz, param);
+    }
+
+    /**
+     * Schedule a chunk on one of the clients holding the data stored under the given keys, chosen by
+     * the placement policy. If none of the clients holds all of the data, any client may be chosen.
+     * @param clz The chunk.
+     * @param param The input data.
+     * @param keys The keys of the data the chunk reads.
+     * @return A promise finishing with the result, or failing if there are no clients or the execution failed.
+     * @see Client#store(String, Serializable)
+     */
+    public Promise<Serializable, RemoteException> submit(Class<? extends CodeChunk> clz, Serializable param,
+                                                         Collection<String> keys) {
+        List<Client> clients = healthy(registry.clients());
+        List<Client> holders = new ArrayList<>();
+        Client target;
+
+        for(Client c : clients)
+            if(c.getStoredKeys().containsAll(keys))
+                holders.add(c);
+
+        if(!holders.isEmpty())
+            target = placementPolicy.choose(Collections.unmodifiableList(holders));
+        else
+            target = clients.isEmpty() ? null : placementPolicy.choose(clients);
+
+        if(target == null)
+            return Deferred.failed(new RemoteException("No clients connected."));
+
+        return target.scheduleBatched(clz, param);
+    }
+
+    /**
+     * Leave out the clients suspected to have failed, so that no chunks are placed on them before they're
+     * dropped. If all the clients are suspected, none is left out - any of them may be just slow.
+     * @param clients The clients.
+     * @return The clients which aren't suspected, or all of them.
+     */
+    private static List<Client> healthy(List<Client> clients) {
+        List<Client> healthy = null;
+
+        for(int i = 0; i < clients.size(); i++) {
+            Client c = clients.get(i);
+
+            // The list is only copied once a suspected client is found.
+            if(c.isSuspected()) {
+                if(healthy == null)
+                    healthy = new ArrayList<>(clients.subList(0, i));
+            } else if(healthy != null) {
+                healthy.add(c);
+            }
+        }
+
+        return healthy == null || healthy.isEmpty() ? clients : Collections.unmodifiableList(healthy);
+    }
+
+    /**
+     * Submit a chunk, resubmitting it if its client disconnects before answering.
+     * @param retries How many times the chunk may be resubmitted.
+     */
+    private Promise<Serializable, RemoteException> submit(Class<? extends CodeChunk> clz, Serializable param,
+                                                          int retries) {
+        Deferred<Serializable, RemoteException> result = new Deferred<>();
+
+        submit(clz, param).unwrap(result::finish).orElse(e -> {
+            // The disconnected client has already been unlinked, so the chunk lands on another one.
+            if(e.getKind() == RemoteException.Kind.DISCONNECTED && retries > 0)
+                submit(clz, param, retries - 1).unwrap(result::finish).orElse(result::fail);
+            else
+                result.fail(e);
+        });
+
+        return result;
+    }
+
+    /**
+     * Spread the inputs over the clients, executing a chunk for every one of them. The chunks are placed
+     * by the placement policy, and retried on another client if their client disconnects.
+     * @param clz The chunk.
+     * @param inputs The input data.
+     * @return A promise finishing with the results in the order of the inputs, or failing as soon as
+     *         any of the chunks fails.
+     */
+    public Promise<List<Serializable>, RemoteException> map(Class<? extends CodeChunk> clz,
+                                                          Collection<? extends Serializable> inputs) {
+        List<Promise<Serializable, RemoteException>> results = new ArrayList<>(inputs.size());
+
+        for(Serializable input : inputs)
+            results.add(submit(clz, input, MAP_RETRIES));
+
+        return Promise.allOf(results);
+    }
+
+    /**
+     * Spread the inputs over the clients, executing a chunk for every one of them, and handle the results
+     * in the order they arrive. The chunks are placed by the placement policy, and retried on another
+     * client if their client disconnects.
+     * @param clz The chunk.
+     * @param inputs The input data.
+     * @param onResult Called with the index of the input and the result, as soon as each chunk finishes.
+     *                 May be called from many threads at once.
+     * @return A promise finishing once all the results have been handled, or failing as soon as any of
+     *         the chunks fails.
+     */
+    public Promise<Boolean, RemoteException> map(Class<? extends CodeChunk> clz,
+                                                 Collection<? extends Serializable> inputs,
+                                                 BiConsumer<Integer, ? super Serializable> onResult) {
+        Deferred<Boolean, RemoteException> done = new Deferred<>();
+        AtomicInteger remaining = new AtomicInteger(inputs.size());
+
+        if(inputs.isEmpty())
+            done.finish(true);
+
+        int index = 0;
+
+        for(Serializable input : inputs) {
+            int i = index++;
+
+            submit(clz, input, MAP_RETRIES).unwrap(x -> {
+                onResult.accept(i, x);
+
+                if(remaining.decrementAndGet() == 0)
+                    done.finish(true);
+            }).orElse(done::fail);
+        }
+
+        return done;
+    }
+
     /**
      * Start the Incenso server, which will listen on a given port.
-     * Construct the poller thread and start it.
+     * Uses the default amount of I/O threads.
      *
      * @param port
      * @throws IOException
      */
     public IncensoServer(int port) throws IOException {
-        s = new ServerSocket(port, SERVER_BACKLOG);
-        clients = new ArrayList<Client>();
+        this(port, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Start the Incenso server, which will listen on a given port.
+     * Construct the I/O threads and start accepting connections on the first one.
+     *
+     * @param port
+     * @param ioThreads The amount of I/O threads serving the connections.
+     * @throws IOException
+     */
+    public IncensoServer(int port, int ioThreads) throws IOException {
+        if(ioThreads <= 0)
+            throw new IllegalArgumentException("ioThreads <= 0");
 
-        poller = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    while (true) {
-                        Client cl = new Client(IncensoServer.this, s.accept());
+        s = ServerSocketChannel.open();
+        s.bind(new InetSocketAddress(port), SERVER_BACKLOG);
+        s.configureBlocking(false);
 
-                        evtOnConnect.broadcast(cl);
+        loops = new EventLoop[ioThreads];
 
-                        lock.writeLock().lock();
-                        clients.add(cl);
-                        lock.writeLock().unlock();
+        for(int i = 0; i < ioThreads; i++)
+            loops[i] = new EventLoop("Incenso I/O thread #" + i + ".");
+
+        loops[0].execute(() -> {
+            try {
+                loops[0].register(s, SelectionKey.OP_ACCEPT, key -> accept());
+            } catch(IOException e) {
+                // The server has been closed before it started accepting.
+            }
+        });
+    }
+
+    /**
+     * Accept all the pending connections. Called on the first I/O thread.
+     */
+    private void accept() {
+        SocketChannel channel;
+
+        try {
+            while((channel = s.accept()) != null) {
+                channel.configureBlocking(false);
+
+                // Requests are small and latency sensitive.
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+
+                // The client announces itself once it's done the handshake, unless it resumes a session.
+                loop.execute(() -> {
+                    try {
+                        new Client(this, accepted, loop);
+                    } catch(Exception e) {
+                        try {
+                            accepted.close();
+                        } catch(IOException ignored) { }
                     }
-                } catch(Throwable t) {
-                    return;
-                }
+                });
             }
-        }, "Incenso Poller thread.");
+        } catch(IOException e) {
+            // Either the server has been closed, or the connection has been reset before we accepted it.
+        }
+    }
+
+    /**
+     * @return The registry of the connected clients, which can be used to look them up by their attributes.
+     */
+    public ClientRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return The timer shared by all the clients.
+     */
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Register a client which has done the initial handshake.
+     * Should be used exclusively by Client instances.
+     */
+    void clientReady(Client c) {
+        // Register the client first, so that the handlers find it in the registry.
+        registry.register(c);
+        membershipChanged();
+
+        evtOnConnect.broadcast(c);
+    }
 
-        poller.start();
+    /**
+     * Unregister a lost client, holding its session until it reconnects or the session expires.
+     * Should be used exclusively by Client instances.
+     */
+    void clientDetached(Client c) {
+        sessions.put(c.getSession(), c);
+
+        if(registry.detach(c))
+            membershipChanged();
+    }
+
+    /**
+     * Register again a client which has resumed its session.
+     * Should be used exclusively by Client instances.
+     */
+    void clientResumed(Client c) {
+        registry.register(c);
+        membershipChanged();
+    }
+
+    /**
+     * Take the lost client holding a given session, so that a new connection can resume it.
+     * @return The client, or null if there's no such session (anymore).
+     */
+    Client resumeSession(String token) {
+        return sessions.remove(token);
+    }
+
+    /**
+     * End the session of a lost client, unless it's been resumed already.
+     * @return Whether the session has been ended.
+     */
+    boolean expireSession(String token, Client c) {
+        return sessions.remove(token, c);
     }
 
     /**
@@ -105,9 +498,120 @@ public class IncensoServer {
      * @param c
      */
     protected void clientUnlink(Client c) {
-        lock.writeLock().lock();
-        clients.remove(c);
-        lock.writeLock().unlock();
+        if(registry.unregister(c))
+            membershipChanged();
+    }
+
+    /**
+     * Reindex a client whose attributes have changed, i.e. which has done the handshake.
+     * Should be used exclusively by Client instances.
+     */
+    void clientUpdated(Client c) {
+        registry.update(c);
+        membershipChanged();
+    }
+
+    /**
+     * Check the pending membership waits, finishing the ones whose condition is met.
+     */
+    private void membershipChanged() {
+        for(MembershipWait w : waits)
+            check(w);
+    }
+
+    private void check(MembershipWait w) {
+        boolean met;
+
+        try {
+            met = w.condition.test(registry);
+        } catch(RuntimeException e) {
+            if(waits.remove(w))
+                w.fail(new RemoteException("The membership condition has thrown an exception.", e));
+
+            return;
+        }
+
+        // Whoever removes the wait resolves it.
+        if(met && waits.remove(w)) {
+            if(w.timeout != null)
+                w.timeout.cancel();
+
+            w.finish(registry.clients());
+        }
+    }
+
+    /**
+     * Wait until a condition over the registry is met, without blocking. The condition is checked right away,
+     * and then whenever a client connects, disconnects or finishes the handshake - on the thread doing that,
+     * so it must be quick.
+     * @param condition The condition.
+     * @param timeout How long to wait at most. Zero or less means no limit.
+     * @param unit The unit of the timeout.
+     * @return A promise finishing with the connected clients as soon as the condition is met, or failing
+     *         with <code>TIMED_OUT</code> if it's not met in time.
+     */
+    public Promise<List<Client>, RemoteException> when(Predicate<? super ClientRegistry> condition,
+                                                        long timeout, TimeUnit unit) {
+        MembershipWait w = new MembershipWait(condition);
+        waits.add(w);
+
+        if(timeout > 0) {
+            w.timeout = timer.schedule(() -> {
+                if(waits.remove(w))
+                    w.fail(new RemoteException(RemoteException.Kind.TIMED_OUT, "The membership condition wasn't met."));
+            }, timeout, unit);
+        }
+
+        // The condition might have been met before the wait has been added.
+        check(w);
+
+        return w;
+    }
+
+    /**
+     * Wait until at least a given amount of clients is connected, without blocking.
+     * @see #when(Predicate, long, TimeUnit)
+     */
+    public Promise<List<Client>, RemoteException> whenClients(int n, long timeout, TimeUnit unit) {
+        return when(r -> r.size() >= n, timeout, unit);
+    }
+
+    /**
+     * Wait until the connected clients have at least a given amount of processors in total, without blocking.
+     * @see #when(Predicate, long, TimeUnit)
+     */
+    public Promise<List<Client>, RemoteException> whenCores(long cores, long timeout, TimeUnit unit) {
+        return when(r -> r.getTotalCPUs() >= cores, timeout, unit);
+    }
+
+    /**
+     * Block until a condition over the registry is met.
+     * @param timeout How long to wait at most. Zero or less means no limit.
+     * @return Whether the condition has been met in time.
+     * @see #when(Predicate, long, TimeUnit)
+     */
+    public boolean await(Predicate<? super ClientRegistry> condition, long timeout, TimeUnit unit) {
+        Promise<List<Client>, RemoteException> p = when(condition, timeout, unit);
+        p.resolve();
+        return p.getStatus() == Promise.Status.FINISHED;
+    }
+
+    /**
+     * Block until at least a given amount of clients is connected.
+     * @param timeout How long to wait at most. Zero or less means no limit.
+     * @return Whether the clients have connected in time.
+     */
+    public boolean awaitClients(int n, long timeout, TimeUnit unit) {
+        return await(r -> r.size() >= n, timeout, unit);
+    }
+
+    /**
+     * Block until the connected clients have at least a given amount of processors in total.
+     * @param timeout How long to wait at most. Zero or less means no limit.
+     * @return Whether the clients have connected in time.
+     */
+    public boolean awaitCores(long cores, long timeout, TimeUnit unit) {
+        return await(r -> r.getTotalCPUs() >= cores, timeout, unit);
     }
 
     /**
@@ -120,31 +624,72 @@ public class IncensoServer {
     }
 
     /**
-     * Disconnect all clients.
+     * Disconnect all clients. If the server has been closed, the I/O threads and the timer are stopped too.
      */
     public void dispose() {
-        lock.writeLock().lock();
-        clients.forEach(x -> x.disconnect().resolve());
-        clients.clear();
-        lock.writeLock().unlock();
+        // Disconnecting a client unlinks it from the list, so the broadcast works on a snapshot.
+        broadcast(Client::disconnect).resolve();
+
+        registry.clear();
+
+        // The lost clients aren't waited for anymore.
+        for(Client c : sessions.values())
+            if(sessions.remove(c.getSession(), c))
+                c.expire();
+
+        if(!s.isOpen()) {
+            // No more clients will connect, so the conditions which aren't met by now never will.
+            for(MembershipWait w : waits)
+                if(waits.remove(w))
+                    w.fail(new RemoteException(RemoteException.Kind.DISCONNECTED, "The server has been disposed."));
+
+            for(EventLoop loop : loops)
+                loop.shutdown();
+
+            timer.stop();
+        }
     }
 
     /**
      * @return the amount of clients connected to the server.
      */
     public int clientCount() {
-        lock.readLock().lock();
-        int size = clients.size();
-        lock.readLock().unlock();
-        return size;
+        return registry.size();
     }
 
     /**
-     * Execute a consumer over all clients.
+     * Execute a consumer over all clients, one after another. The consumer is called on a snapshot
+     * of the clients, so it may connect or disconnect clients.
+     * @see #broadcast(Function)
      */
     public void clientForEach(Consumer<? super Client> action) {
-        lock.writeLock().lock();
-        clients.forEach(action);
-        lock.writeLock().unlock();
+        registry.clients().forEach(action);
+    }
+
+    /**
+     * Run an operation on all the clients at once, keeping at most <code>DEFAULT_BROADCAST_CONCURRENCY</code>
+     * operations in flight.
+     * @see #broadcast(Function, int)
+     */
+    public <X> Promise<BroadcastResult<X>, RemoteException> broadcast(
+            Function<? super Client, ? extends Promise<? extends X, RemoteException>> action) {
+        return broadcast(action, DEFAULT_BROADCAST_CONCURRENCY);
+    }
+
+    /**
+     * Run an operation on all the clients at once, e.g. upload a module to every one of them.
+     * The operation is run on a snapshot of the clients, so the clients connecting in the meantime are left out.
+     * @param action Starts the operation on a given client. It should return a new promise every time, since
+     *               its callbacks are set by the broadcast.
+     * @param concurrency The maximum amount of operations in flight at once.
+     * @return A promise finishing with the outcome of the operation on every client once all of them are
+     *         resolved. It never fails - the failures are a part of the outcome.
+     */
+    public <X> Promise<BroadcastResult<X>, RemoteException> broadcast(
+            Function<? super Client, ? extends Promise<? extends X, RemoteException>> action, int concurrency) {
+        if(concurrency <= 0)
+            throw new IllegalArgumentException("concurrency <= 0");
+
+        return new Broadcast<X>(registry.clients(), action, concurrency).start();
     }
 }
@@ -0,0 +1,113 @@
+package incenso.server.transport;
+
+import incenso.common.ClassBundle;
+import incenso.common.Payload;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates the chunk inputs sent to a single client. Large inputs are hashed, and an input which has recently
+ * been sent to the client is sent as just its hash.
+ *
+ * The client remembers a bounded amount of inputs, so this mirrors its cache with a cache of the same size.
+ * The mirror is only a guess - whenever the client doesn't remember an input after all, it says so,
+ * and the input is sent again in full.
+ *
+ * @see Payload
+ */
+class PayloadDedup {
+    /**
+     * Inputs smaller than that many bytes aren't worth hashing.
+     */
+    private static final int THRESHOLD = 4096;
+
+    /**
+     * The assumed capacity of the client's cache, in bytes. Matches the default of the client.
+     */
+    private static final long CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * Sizes of the inputs the client is assumed to remember, keyed by hash, in access order.
+     */
+    private final LinkedHashMap<String, Integer> sent = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), saved = new AtomicLong();
+
+    /**
+     * Encode an input, sending just its hash if the client is assumed to remember it.
+     * @param data The serialized input.
+     * @return The payload.
+     */
+    Payload encode(byte[] data) {
+        if(data.length < THRESHOLD)
+            return Payload.inline(data);
+
+        String hash = ClassBundle.hash(data);
+
+        synchronized(this) {
+            if(sent.get(hash) != null) {
+                hits.incrementAndGet();
+                saved.addAndGet(data.length);
+                return Payload.reference(hash);
+            }
+
+            // The client remembers the input as soon as it receives it.
+            sent.put(hash, data.length);
+            size += data.length;
+
+            Iterator<Integer> it = sent.values().iterator();
+
+            while(size > CAPACITY && it.hasNext()) {
+                size -= it.next();
+                it.remove();
+            }
+        }
+
+        return Payload.cached(hash, data);
+    }
+
+    /**
+     * Forget the inputs the client has reported not to remember. They're sent in full from now on.
+     * @param hashes The hashes of the inputs.
+     */
+    synchronized void missed(Collection<String> hashes) {
+        // A hash is listed once for every reference to it, each of which has been counted as a hit.
+        Map<String, Integer> forgotten = new HashMap<>();
+
+        for(String hash : hashes) {
+            Integer length = sent.remove(hash);
+
+            if(length != null) {
+                size -= length;
+                forgotten.put(hash, length);
+            } else {
+                length = forgotten.get(hash);
+            }
+
+            if(length != null)
+                saved.addAndGet(-length);
+
+            hits.decrementAndGet();
+            misses.incrementAndGet();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getBytesSaved() {
+        return saved.get();
+    }
+}
@@ -0,0 +1,135 @@
+package incenso.server.transport;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
+
+/**
+ * Factories for the placement policies shipped with Incenso.
+ *
+ * The load of a client is the amount of chunks it's executing or queueing per slot, counting the chunk being
+ * placed. Clients which haven't finished the handshake yet are assumed to have a single slot.
+ *
+ * @see IncensoServer#setPlacementPolicy(PlacementPolicy)
+ */
+public class PlacementPolicies {
+    /**
+     * @return The load of a client, if it was given one more chunk.
+     */
+    private static double load(Client c) {
+        return (c.getOutstanding() + 1) / (double) Math.max(1, c.getSlots());
+    }
+
+    /**
+     * @return Whether client <code>a</code> should be preferred over client <code>b</code>. The client with
+     *         the lower load wins, ties are broken by the observed latency.
+     */
+    private static boolean better(Client a, Client b) {
+        double la = load(a), lb = load(b);
+
+        if(la != lb)
+            return la < lb;
+
+        return a.getLatency() < b.getLatency();
+    }
+
+    /**
+     * A policy picking the client with the lowest load. Examines all the clients, so it makes the best
+     * decisions, but costs O(n) per chunk.
+     *
+     * @return The policy.
+     */
+    public static PlacementPolicy leastOutstanding() {
+        return clients -> {
+            Client best = clients.get(0);
+
+            for(int i = 1; i < clients.size(); i++)
+                if(better(clients.get(i), best))
+                    best = clients.get(i);
+
+            return best;
+        };
+    }
+
+    /**
+     * A policy picking the less loaded of two random clients. Costs O(1) per chunk, and avoids the herd
+     * behaviour of always picking the least loaded client when many chunks are submitted at once, while
+     * staying close to it in terms of the load balance.
+     *
+     * @return The policy.
+     */
+    public static PlacementPolicy powerOfTwoChoices() {
+        return clients -> {
+            int n = clients.size();
+
+            if(n == 1)
+                return clients.get(0);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(n);
+            int j = random.nextInt(n - 1);
+
+            // Two distinct clients.
+            if(j >= i)
+                j++;
+
+            Client a = clients.get(i), b = clients.get(j);
+            return better(b, a) ? b : a;
+        };
+    }
+
+    /**
+     * A policy distributing the chunks among the clients in proportion to their amount of slots,
+     * regardless of the load.
+     *
+     * @return The policy.
+     * @see #weightedRoundRobin(ToIntFunction)
+     */
+    public static PlacementPolicy weightedRoundRobin() {
+        return weightedRoundRobin(c -> Math.max(1, c.getSlots()));
+    }
+
+    /**
+     * A policy distributing the chunks among the clients in proportion to the given weights, regardless of
+     * the load. Uses the smooth variant of the algorithm, which interleaves the clients instead of
+     * sending bursts of chunks to the heaviest ones. Costs O(n) per chunk.
+     *
+     * @param weight The weight of a client, e.g. based on <code>getRAMKiB</code>. Must be positive.
+     * @return The policy.
+     */
+    public static PlacementPolicy weightedRoundRobin(ToIntFunction<Client> weight) {
+        return new PlacementPolicy() {
+            /**
+             * The current weights. Rebuilt on every call, so that disconnected clients don't linger.
+             */
+            private Map<Client, Long> current = new IdentityHashMap<>();
+
+            @Override
+            public synchronized Client choose(List<Client> clients) {
+                Map<Client, Long> next = new IdentityHashMap<>();
+                Client best = null;
+                long bestWeight = 0, total = 0;
+
+                for(Client c : clients) {
+                    int w = Math.max(1, weight.applyAsInt(c));
+                    long cw = current.getOrDefault(c, 0L) + w;
+
+                    next.put(c, cw);
+                    total += w;
+
+                    if(best == null || cw > bestWeight) {
+                        best = c;
+                        bestWeight = cw;
+                    }
+                }
+
+                next.put(best, bestWeight - total);
+                current = next;
+
+                return best;
+            }
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package incenso.server.transport;
+
+import java.util.List;
+
+/**
+ * Decides which client a chunk submitted to IncensoServer is scheduled on.
+ *
+ * Policies are called for every submitted chunk, so they must be fast. They're given a snapshot of the clients,
+ * which may include clients disconnected in the meantime, and may be called from many threads at once.
+ *
+ * @see PlacementPolicies
+ * @see IncensoServer#submit(Class, java.io.Serializable)
+ */
+public interface PlacementPolicy {
+    /**
+     * Pick a client.
+     * @param clients The connected clients, leaving out the suspected ones if there are others. Never empty.
+     *                Must not be modified.
+     * @return The client to schedule the chunk on.
+     */
+    Client choose(List<Client> clients);
+}
@@ -0,0 +1,185 @@
+package incenso.server.util;
+
+import incenso.common.ClassBundle;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the bytecode of a class and the classes it depends on into a class bundle.
+ *
+ * Dependencies are discovered by scanning the constant pool of every collected class for class references
+ * and type descriptors. Only the classes which come from the same class loader as the root class are
+ * collected. Platform classes and the Incenso library itself are expected to be present on the client.
+ * Chunks declared as nested classes refer to their enclosing class, so e.g. the application's entry point may end
+ * up in the bundle too. That's harmless - the client only defines the classes which are actually used.
+ *
+ * Bundles are cached, since the bytecode of a loaded class can't change.
+ */
+public class ClassCollector {
+    /**
+     * Already collected bundles, with all the bytecode included.
+     */
+    private static final ConcurrentHashMap<Class<?>, ClassBundle> bundles = new ConcurrentHashMap<>();
+
+    /**
+     * Matches class names in type descriptors and signatures, e.g. <code>(Lfoo/Bar;I)V</code>.
+     */
+    private static final Pattern DESCRIPTOR = Pattern.compile("L([^;<>()\\[.]+)[;<]");
+
+    /**
+     * Packages of the Incenso library, present on both sides, which are never sent.
+     */
+    private static final String[] LIBRARY_PACKAGES = {
+            "incenso.common.", "incenso.client.", "incenso.server.transport.", "incenso.server.util."
+    };
+
+    /**
+     * Collect a class bundle for a given class.
+     * @param clz The root class.
+     * @return The bundle, with all the bytecode included.
+     * @throws IOException if the bytecode of the class can't be read.
+     */
+    public static ClassBundle collect(Class<?> clz) throws IOException {
+        ClassBundle bundle = bundles.get(clz);
+
+        if(bundle == null) {
+            bundle = build(clz);
+            bundles.putIfAbsent(clz, bundle);
+        }
+
+        return bundle;
+    }
+
+    private static ClassBundle build(Class<?> clz) throws IOException {
+        ClassLoader loader = clz.getClassLoader();
+
+        if(loader == null)
+            throw new IOException("Can't send the platform class " + clz.getName() + ".");
+
+        List<ClassBundle.Entry> entries = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+
+        seen.add(clz.getName());
+        queue.add(clz.getName());
+
+        while(!queue.isEmpty()) {
+            String name = queue.poll();
+            byte[] bytecode = read(loader, name);
+
+            if(bytecode == null) {
+                // The root class has to be sent, the dependencies are expected to be present on the client.
+                if(entries.isEmpty())
+                    throw new IOException("Couldn't find the bytecode of " + name + ".");
+
+                continue;
+            }
+
+            entries.add(new ClassBundle.Entry(name, ClassBundle.hash(bytecode), bytecode));
+
+            for(String dep : references(bytecode))
+                if(!isLibrary(dep) && seen.add(dep))
+                    queue.add(dep);
+        }
+
+        return new ClassBundle(entries);
+    }
+
+    private static boolean isLibrary(String name) {
+        for(String p : LIBRARY_PACKAGES)
+            if(name.startsWith(p))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Read the bytecode of a class, unless it's a platform class.
+     * @return The bytecode, or null if it's not available from the loader or it belongs to the platform.
+     */
+    private static byte[] read(ClassLoader loader, String name) throws IOException {
+        String resource = name.replace('.', '/') + ".class";
+
+        if(ClassLoader.getPlatformClassLoader().getResource(resource) != null)
+            return null;
+
+        try(InputStream in = loader.getResourceAsStream(resource)) {
+            return in == null ? null : in.readAllBytes();
+        }
+    }
+
+    /**
+     * Scan the constant pool of a class for the names of the classes it refers to.
+     * @param bytecode The bytecode.
+     * @return Binary names of the referenced classes.
+     * @throws IOException if the bytecode is malformed.
+     */
+    private static Set<String> references(byte[] bytecode) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytecode));
+
+        if(in.readInt() != 0xCAFEBABE)
+            throw new IOException("Not a class file.");
+
+        // Minor and major version.
+        in.skipBytes(4);
+
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        List<Integer> classes = new ArrayList<>();
+
+        for(int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+
+            switch(tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classes.add(in.readUnsignedShort());
+                    break;
+                case 8: case 16: case 19: case 20: // String, MethodType, Module, Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    // Integer, Float, Fieldref, Methodref, InterfaceMethodref, NameAndType, Dynamic, InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: case 6: // Long, Double - they take two constant pool slots.
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + ".");
+            }
+        }
+
+        Set<String> names = new HashSet<>();
+
+        for(int index : classes) {
+            String name = utf8[index];
+
+            // Array classes are referred to by their descriptor.
+            if(name != null && !name.startsWith("["))
+                names.add(name.replace('/', '.'));
+        }
+
+        for(String s : utf8) {
+            if(s == null)
+                continue;
+
+            Matcher m = DESCRIPTOR.matcher(s);
+
+            while(m.find())
+                names.add(m.group(1).replace('/', '.'));
+        }
+
+        return names;
+    }
+}
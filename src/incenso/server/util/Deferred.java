@@ -0,0 +1,51 @@
+package incenso.server.util;
+
+/**
+ * A promise without an operation of its own, resolved from the outside by calling
+ * <code>finish</code> or <code>fail</code>. Useful for bridging callback-based code with promises.
+ *
+ * @param <X> Finish type.
+ * @param <Y> Fail type.
+ */
+public class Deferred<X, Y> extends Promise<X, Y> {
+    /**
+     * Create a pending promise. Nothing is submitted to the promise executor.
+     */
+    public Deferred() {
+        super(false);
+    }
+
+    /**
+     * @return A promise already finished with a given value.
+     */
+    public static <X, Y> Deferred<X, Y> finished(X x) {
+        Deferred<X, Y> d = new Deferred<>();
+        d.finish(x);
+        return d;
+    }
+
+    /**
+     * @return A promise already failed with a given value.
+     */
+    public static <X, Y> Deferred<X, Y> failed(Y y) {
+        Deferred<X, Y> d = new Deferred<>();
+        d.fail(y);
+        return d;
+    }
+
+    @Override
+    protected void onResolve() { }
+
+    @Override
+    protected void process() { }
+
+    @Override
+    public void finish(X x) {
+        super.finish(x);
+    }
+
+    @Override
+    public void fail(Y y) {
+        super.fail(y);
+    }
+}
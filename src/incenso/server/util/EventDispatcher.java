@@ -1,36 +1,134 @@
 package incenso.server.util;
 
-import java.util.Vector;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
  * A basic event dispatcher.
  * Registers event handlers and allows broadcasting messages to them.
  *
+ * The handlers are kept in a copy-on-write array, so broadcasting never takes a lock - registering and
+ * unregistering is rare, broadcasting isn't. A handler throwing an exception doesn't prevent the other
+ * handlers from getting the message.
+ *
+ * By default, the handlers are called by the thread broadcasting the message. The dispatcher can be switched
+ * to the asynchronous mode with <code>dispatchAsync</code>, in which the messages are queued and delivered
+ * on an executor, in the order they have been broadcast. The queue is bounded; what happens when it's full
+ * depends on the <code>OverflowPolicy</code>.
+ *
  * @param <T>
  */
 public class EventDispatcher<T> {
     /**
-     * Current list of all event handlers.
+     * What to do with a message broadcast while the queue of an asynchronous dispatcher is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the message.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest queued message to make room for it.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Deliver the message on the broadcasting thread, ahead of the queued ones. Nothing is lost, but
+         * the broadcaster is slowed down.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * The queue of an asynchronous dispatcher.
+     */
+    private class Async {
+        final Executor executor;
+        final ArrayBlockingQueue<T> queue;
+        final OverflowPolicy policy;
+
+        /**
+         * Set while a task draining the queue is scheduled or running.
+         */
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        Async(Executor executor, int capacity, OverflowPolicy policy) {
+            this.executor = executor;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.policy = policy;
+        }
+
+        void offer(T x) {
+            while(!queue.offer(x)) {
+                if(policy == OverflowPolicy.DROP_OLDEST && queue.poll() != null) {
+                    dropped.incrementAndGet();
+                } else if(policy == OverflowPolicy.CALLER_RUNS) {
+                    deliver(x);
+                    return;
+                } else if(policy == OverflowPolicy.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+
+            schedule();
+        }
+
+        void schedule() {
+            if(!draining.compareAndSet(false, true))
+                return;
+
+            try {
+                executor.execute(this::drain);
+            } catch(RejectedExecutionException e) {
+                // The executor has been shut down; deliver what's queued right away rather than losing it.
+                drain();
+            }
+        }
+
+        void drain() {
+            T x;
+
+            while((x = queue.poll()) != null)
+                deliver(x);
+
+            draining.set(false);
+
+            // A message may have been queued after the queue has been found empty, but before the flag was cleared.
+            if(!queue.isEmpty())
+                schedule();
+        }
+    }
+
+    private static final Consumer<?>[] NO_HANDLERS = new Consumer<?>[0];
+
+    /**
+     * Current array of all event handlers. Replaced as a whole whenever a handler is registered or unregistered.
      */
-    private Vector<Consumer<T>> eventHandlers = new Vector<>();
+    private volatile Consumer<?>[] eventHandlers = NO_HANDLERS;
 
     /**
-     * A lock to ensure no parallel access to the event handlers vector.
+     * The queue the messages are delivered from, or null if the handlers are called synchronously.
      */
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Async async = null;
+
+    private final AtomicLong delivered = new AtomicLong(), dropped = new AtomicLong(), failed = new AtomicLong();
 
     /**
      * Register an event handler.
      * It will start getting notified about broadcasts.
      * @param handler
      */
-    public void register(Consumer<T> handler) {
-        lock.writeLock().lock();
-        eventHandlers.add(handler);
-        lock.writeLock().unlock();
+    public synchronized void register(Consumer<T> handler) {
+        Consumer<?>[] handlers = Arrays.copyOf(eventHandlers, eventHandlers.length + 1);
+        handlers[handlers.length - 1] = handler;
+        eventHandlers = handlers;
     }
 
     /**
@@ -38,10 +136,43 @@ public class EventDispatcher<T> {
      * It will no longer get notified about broadcasts.
      * @param handler
      */
-    public void unregister(Consumer<T> handler) {
-        lock.writeLock().lock();
-        eventHandlers.remove(handler);
-        lock.writeLock().unlock();
+    public synchronized void unregister(Consumer<T> handler) {
+        Consumer<?>[] handlers = eventHandlers;
+
+        for(int i = 0; i < handlers.length; i++) {
+            if(handlers[i].equals(handler)) {
+                Consumer<?>[] rest = new Consumer<?>[handlers.length - 1];
+                System.arraycopy(handlers, 0, rest, 0, i);
+                System.arraycopy(handlers, i + 1, rest, i, handlers.length - i - 1);
+                eventHandlers = rest;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deliver the messages broadcast from now on asynchronously, on a given executor.
+     * The messages are still delivered one at a time, in the order they have been broadcast.
+     * @param executor The executor, e.g. <code>Promise.getExecutor()</code>.
+     * @param capacity The maximum amount of messages waiting to be delivered.
+     * @param policy What to do with the messages broadcast while the queue is full.
+     */
+    public void dispatchAsync(Executor executor, int capacity, OverflowPolicy policy) {
+        if(executor == null || policy == null)
+            throw new IllegalArgumentException("executor == null || policy == null");
+
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity <= 0");
+
+        async = new Async(executor, capacity, policy);
+    }
+
+    /**
+     * Deliver the messages broadcast from now on synchronously, on the broadcasting thread. This is the default.
+     * The messages which have already been queued are still delivered asynchronously.
+     */
+    public void dispatchSync() {
+        async = null;
     }
 
     /**
@@ -49,8 +180,53 @@ public class EventDispatcher<T> {
      * @param x
      */
     public void broadcast(T x) {
-        lock.readLock().lock();
-        eventHandlers.forEach(y -> y.accept(x));
-        lock.readLock().unlock();
+        Async a = async;
+
+        if(a != null)
+            a.offer(x);
+        else
+            deliver(x);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(T x) {
+        for(Consumer<?> handler : eventHandlers) {
+            try {
+                ((Consumer<T>) handler).accept(x);
+            } catch(RuntimeException e) {
+                failed.incrementAndGet();
+            }
+        }
+
+        delivered.incrementAndGet();
+    }
+
+    /**
+     * @return The amount of messages delivered to the handlers so far.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return The amount of messages dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The amount of times a handler has thrown an exception.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return The amount of messages waiting to be delivered.
+     */
+    public int getQueued() {
+        Async a = async;
+        return a == null ? 0 : a.queue.size();
     }
 }
@@ -0,0 +1,173 @@
+package incenso.server.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timer able to keep track of a large number of timeouts using a single thread.
+ *
+ * The timeouts are hashed into the buckets of a wheel, which advances by one bucket every tick. Scheduling
+ * and cancelling a timeout is O(1), at the expense of precision - a timeout expires up to one tick late.
+ * That's fine for heartbeats and request timeouts, which is what it's used for.
+ *
+ * Tasks are run on the timer thread, so they must be short - anything longer should be handed over to
+ * an executor.
+ */
+public class HashedWheelTimer {
+    /**
+     * A handle to a scheduled task.
+     */
+    public static class Timeout {
+        private final Runnable task;
+
+        private final long deadline;
+
+        /**
+         * The amount of full wheel rotations left before the timeout expires. Only touched by the timer thread.
+         */
+        private long rounds;
+
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task. Has no effect if the task has already been run.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return Whether the task has been cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+
+    private final List<ArrayDeque<Timeout>> wheel;
+
+    /**
+     * Timeouts scheduled since the last tick. The timer thread moves them to the wheel.
+     */
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+
+    private final long start = System.nanoTime();
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Create a timer with a tick of 100ms and 512 buckets.
+     * @param name The name of the timer thread.
+     */
+    public HashedWheelTimer(String name) {
+        this(name, 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @param name The name of the timer thread.
+     * @param tick The duration of a single tick.
+     * @param unit The unit of the tick duration.
+     * @param buckets The amount of buckets in the wheel.
+     */
+    public HashedWheelTimer(String name, long tick, TimeUnit unit, int buckets) {
+        if(tick <= 0 || buckets <= 0)
+            throw new IllegalArgumentException("tick <= 0 || buckets <= 0");
+
+        tickNanos = unit.toNanos(tick);
+        wheel = new ArrayList<>(buckets);
+
+        for(int i = 0; i < buckets; i++)
+            wheel.add(new ArrayDeque<>());
+
+        thread = new Thread(this::run, name);
+
+        // An idle timer shouldn't keep the JVM alive.
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedule a task to be run once, after a given delay.
+     * @param task The task, run on the timer thread.
+     * @param delay The delay.
+     * @param unit The unit of the delay.
+     * @return A handle which can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - start + unit.toNanos(Math.max(delay, 0)));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the timer. Pending tasks are never run.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+
+        while(running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep = deadline - (System.nanoTime() - start);
+
+            if(sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch(InterruptedException e) {
+                    continue;
+                }
+            }
+
+            Timeout timeout;
+
+            while((timeout = scheduled.poll()) != null) {
+                if(timeout.cancelled)
+                    continue;
+
+                // Timeouts which are already due land in the current bucket.
+                long due = Math.max(timeout.deadline / tickNanos, tick);
+                timeout.rounds = (due - tick) / wheel.size();
+                wheel.get((int) (due % wheel.size())).add(timeout);
+            }
+
+            Iterator<Timeout> it = wheel.get((int) (tick % wheel.size())).iterator();
+
+            while(it.hasNext()) {
+                timeout = it.next();
+
+                if(timeout.cancelled) {
+                    it.remove();
+                } else if(timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    it.remove();
+
+                    try {
+                        timeout.task.run();
+                    } catch(RuntimeException e) {
+                        // A failing task mustn't stop the timer.
+                    }
+                }
+            }
+
+            tick++;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package incenso.server.util;
+
+/**
+ * The phi accrual failure detector, as described by Hayashibara et al.
+ *
+ * Rather than deciding whether a peer is alive, the detector tells how suspicious its silence is - phi is
+ * the negative decimal logarithm of the probability that a heartbeat would arrive even later than now, given
+ * the intervals between the heartbeats seen so far. A phi of 1 means there's a 10% chance the peer is just
+ * late, a phi of 2 means there's a 1% chance, and so on. The intervals are assumed to be normally distributed,
+ * and the distribution is approximated with a logistic function, so that phi is cheap to compute.
+ *
+ * The detector adapts to the network - a peer whose heartbeats have always been late becomes suspicious later.
+ *
+ * Thread-safe.
+ */
+public class PhiAccrualFailureDetector {
+    /**
+     * The latest intervals between the heartbeats, in milliseconds. A ring buffer.
+     */
+    private final long[] intervals;
+
+    private int count = 0, next = 0;
+
+    private double sum = 0, sumOfSquares = 0;
+
+    /**
+     * The lowest standard deviation assumed, so that a peer with a very regular heartbeat doesn't become
+     * suspicious as soon as a heartbeat is a tiny bit late.
+     */
+    private final double minStdDeviation;
+
+    /**
+     * The pause which is tolerated on top of the average interval, e.g. a garbage collector cycle.
+     */
+    private final long acceptablePause;
+
+    /**
+     * When the last heartbeat has been recorded, and when the peer has been last heard of at all.
+     */
+    private long lastHeartbeat, lastSeen;
+
+    /**
+     * @param window The amount of intervals the distribution is estimated from.
+     * @param firstInterval The expected interval, assumed until the first heartbeats arrive, in milliseconds.
+     * @param minStdDeviation The lowest standard deviation assumed, in milliseconds.
+     * @param acceptablePause The pause tolerated on top of the average interval, in milliseconds.
+     * @param now The current time in milliseconds - the detector starts as if a heartbeat has just arrived.
+     */
+    public PhiAccrualFailureDetector(int window, long firstInterval, double minStdDeviation, long acceptablePause,
+                                     long now) {
+        if(window < 2)
+            throw new IllegalArgumentException("window < 2");
+
+        this.intervals = new long[window];
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+        this.lastHeartbeat = this.lastSeen = now;
+
+        // Seed the distribution, so that the first heartbeats aren't judged by an empty history.
+        record(firstInterval - firstInterval / 4);
+        record(firstInterval + firstInterval / 4);
+    }
+
+    private void record(long interval) {
+        if(count == intervals.length) {
+            long oldest = intervals[next];
+            sum -= oldest;
+            sumOfSquares -= (double) oldest * oldest;
+        } else {
+            count++;
+        }
+
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+
+    /**
+     * Record a heartbeat.
+     * @param now The current time in milliseconds.
+     */
+    public synchronized void heartbeat(long now) {
+        record(Math.max(0, now - lastHeartbeat));
+        lastHeartbeat = now;
+        lastSeen = Math.max(lastSeen, now);
+    }
+
+    /**
+     * Record a sign of life which isn't a heartbeat, e.g. other data from the peer. It doesn't contribute to
+     * the distribution of the intervals, but phi is measured from it.
+     * @param now The current time in milliseconds.
+     */
+    public synchronized void seen(long now) {
+        lastSeen = Math.max(lastSeen, now);
+    }
+
+    /**
+     * @param now The current time in milliseconds.
+     * @return The suspicion level - zero right after a heartbeat, growing as the peer stays silent.
+     */
+    public synchronized double phi(long now) {
+        double mean = sum / count;
+        double variance = Math.max(0, sumOfSquares / count - mean * mean);
+        double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviation);
+
+        double y = (now - lastSeen - mean - acceptablePause) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        // Both forms compute -log10(1 - F(y)), F being the logistic approximation of the normal distribution;
+        // each one is numerically stable on its side of the mean.
+        return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    /**
+     * @return When the last heartbeat has been recorded, in milliseconds.
+     */
+    public synchronized long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    /**
+     * @return When the peer has been last heard of, heartbeat or not, in milliseconds.
+     */
+    public synchronized long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return The average interval between the heartbeats, in milliseconds.
+     */
+    public synchronized double getMeanInterval() {
+        return sum / count;
+    }
+}
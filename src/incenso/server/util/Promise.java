@@ -1,8 +1,17 @@
 package incenso.server.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * A promise - basic form of asynchronous operation utilized by the Incenso library.
@@ -21,6 +30,14 @@ import java.util.function.Consumer;
  * A promise has two callbacks - <code>unwrap</code> and <code>orElse</code>. Set them <i>only once</i>. Changing
  * the callback for an existing promise results in undefined behaviour.
  *
+ * Promises are processed on a shared executor, by default one running every promise in a virtual thread.
+ * It can be replaced using <code>setExecutor</code>, e.g. with a bounded pool.
+ *
+ * Promises can be composed without blocking any thread, using <code>thenApply</code>, <code>thenCompose</code>,
+ * <code>allOf</code> and <code>anyOf</code>. The continuations run on the thread which resolves the promise.
+ * For interoperability with other libraries, see <code>toCompletableFuture</code> and
+ * <code>fromCompletionStage</code>.
+ *
  * @param <X> Finish type.
  * @param <Y> Fail type.
  */
@@ -41,12 +58,12 @@ public abstract class Promise<X, Y> {
      * Expected to be implemented by the Promise. Called before resolving the promise.
      * It's usually doing cleanup and unlocking the locks.
      *
-     * It's guaranteed to be called from the same thread as `process'.
+     * It's called from the thread which resolves the promise, which isn't necessarily the one that ran `process'.
      */
     protected abstract void onResolve();
 
     /**
-     * Expected to be implemented by the Promise. Called in a new thread soon after constructing the promise.
+     * Expected to be implemented by the Promise. Called on the promise executor soon after constructing the promise.
      */
     protected abstract void process();
 
@@ -80,18 +97,78 @@ public abstract class Promise<X, Y> {
      */
     private AtomicReference<Status> promiseStatus;
 
+    /**
+     * Set once the promise has been finished or failed. Guarded by the promise monitor, like the callbacks.
+     */
+    private boolean resolved = false;
+
+    /**
+     * Whether the promise has been finished (as opposed to failed). Only meaningful once <code>resolved</code>
+     * is set. Unlike the status, it's not affected by the <code>unwrap</code> callback throwing.
+     */
+    private boolean succeeded = false;
+
+    /**
+     * Continuations registered by the combinators, run once the promise is resolved.
+     */
+    private final List<Runnable> listeners = new ArrayList<>();
+
     /**
      * A lock used by `resolve', which joins the promise thread into the current (waiting) thread.
      */
     private final CountDownLatch resolveSync = new CountDownLatch(1);
 
     /**
-     * An empty promise constructor. Starts the promise thread and initializes the promise status to
-     * <code>Status.PENDING</code>.
+     * The executor which processes all the newly created promises.
+     */
+    private static volatile Executor executor = PromiseExecutors.virtualThreads();
+
+    /**
+     * Set the executor used to process promises created from now on.
+     * Promises which have already been created are not affected.
+     *
+     * @param e The executor.
+     * @see PromiseExecutors
+     */
+    public static void setExecutor(Executor e) {
+        if(e == null)
+            throw new IllegalArgumentException("The executor can't be null.");
+
+        executor = e;
+    }
+
+    /**
+     * @return The executor used to process promises.
+     */
+    public static Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * An empty promise constructor. Submits the promise to the promise executor and initializes the promise
+     * status to <code>Status.PENDING</code>.
      */
     public Promise() {
+        this(true);
+    }
+
+    /**
+     * A promise constructor for promises resolved from the outside, which don't need to be processed.
+     * @param submit Whether to submit the promise to the promise executor.
+     * @see Deferred
+     */
+    Promise(boolean submit) {
         promiseStatus = new AtomicReference<>(Status.PENDING);
-        new Thread(this::process, "Pending promise.").start();
+
+        if(submit)
+            executor.execute(this::process);
+    }
+
+    /**
+     * @return The current promise status.
+     */
+    public Status getStatus() {
+        return promiseStatus.get();
     }
 
     /**
@@ -101,10 +178,15 @@ public abstract class Promise<X, Y> {
      * @return Current promise.
      */
     public Promise<X,Y> unwrap(Consumer<X> x) {
-        cOk = x;
+        boolean finished;
+
+        synchronized(this) {
+            cOk = x;
+            finished = resolved && succeeded;
+        }
 
-        if(okValue != null)
-            cOk.accept(okValue);
+        if(finished)
+            x.accept(okValue);
 
         return this;
     }
@@ -116,60 +198,305 @@ public abstract class Promise<X, Y> {
      * @return Current promise.
      */
     public Promise<X,Y> orElse(Consumer<Y> y) {
-        cFail = y;
+        boolean failed;
 
-        if(failValue != null)
-            cFail.accept(failValue);
+        synchronized(this) {
+            cFail = y;
+            failed = resolved && !succeeded;
+        }
+
+        if(failed)
+            y.accept(failValue);
 
         return this;
     }
 
+    /**
+     * Register a continuation, called with the finish value or the fail value as soon as the promise is resolved.
+     * Unlike <code>unwrap</code> and <code>orElse</code>, any amount of continuations can be registered.
+     * @param ok Called if the promise finishes.
+     * @param failed Called if the promise fails.
+     */
+    private void listen(Consumer<? super X> ok, Consumer<? super Y> failed) {
+        Runnable listener = () -> {
+            if(succeeded)
+                ok.accept(okValue);
+            else
+                failed.accept(failValue);
+        };
+
+        synchronized(this) {
+            if(!resolved) {
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        listener.run();
+    }
+
+    /**
+     * Mark the promise resolved, unless it has already been resolved.
+     *
+     * The callback registered by now is taken along with the continuations, under the same monitor - a callback
+     * registered afterwards sees the promise resolved and is called by <code>unwrap</code> or <code>orElse</code>.
+     * That way, the callback is called exactly once, whichever comes first.
+     * @return The callback and the continuations to run, or null if the promise has already been resolved.
+     */
+    private synchronized List<Runnable> settle(boolean success, X x, Y y) {
+        if(resolved)
+            return null;
+
+        okValue = x;
+        failValue = y;
+        succeeded = success;
+        resolved = true;
+        promiseStatus.set(success ? Status.FINISHED : Status.FAILED);
+
+        List<Runnable> pending = new ArrayList<>(listeners.size() + 1);
+        Consumer<X> ok = cOk;
+        Consumer<Y> failed = cFail;
+
+        if(success && ok != null) {
+            pending.add(() -> {
+                try {
+                    ok.accept(x);
+                } catch(Throwable t) {
+                    promiseStatus.set(Status.FAILED);
+                }
+            });
+        } else if(!success && failed != null) {
+            pending.add(() -> failed.accept(y));
+        }
+
+        pending.addAll(listeners);
+        listeners.clear();
+        return pending;
+    }
+
+    /**
+     * Run the callback and the continuations of a resolved promise. One of them throwing doesn't keep the others,
+     * <code>onResolve</code> or the waiting threads from running.
+     */
+    private static void runAll(List<Runnable> pending) {
+        for(Runnable r : pending) {
+            try {
+                r.run();
+            } catch(Throwable t) {
+                // Nobody to report it to - the promise is resolved already.
+            }
+        }
+    }
+
     /**
      * Internal promise API. Marks the promise as failed, sets the failure value,
      * schedules calling the failure consumer, notifies threads waiting for the promise
      * to be resolved and calls <code>onResolve</code> handlers.
+     * Has no effect if the promise has already been resolved.
      * @param y
      */
     protected void fail(Y y) {
-        promiseStatus.set(Status.FAILED);
+        List<Runnable> pending = settle(false, null, y);
 
-        failValue = y;
-
-        if(cFail != null)
-            cFail.accept(y);
+        if(pending == null)
+            return;
 
-        onResolve();
+        runAll(pending);
 
-        resolveSync.countDown();
+        try {
+            onResolve();
+        } finally {
+            resolveSync.countDown();
+        }
     }
 
     /**
      * Internal promise API. Marks the promise as finished, sets the finish value,
      * schedules calling the <code>unwrap</code> consumer and notifies threads waiting for the
      * promise to be resolved and calls <code>onResolve</code> handlers.
+     * Has no effect if the promise has already been resolved.
      * @param x
      */
     protected void finish(X x) {
-        promiseStatus.set(Status.FINISHED);
+        List<Runnable> pending = settle(true, x, null);
 
-        okValue = x;
+        if(pending == null)
+            return;
+
+        runAll(pending);
+
+        try {
+            onResolve();
+        } finally {
+            resolveSync.countDown();
+        }
+    }
+
+    /**
+     * Block the current thread until the promise is resolved.
+     */
+    public void resolve() {
+        try { resolveSync.await(); } catch(Exception e) { }
+    }
+
+    /**
+     * Transform the finish value of this promise, without blocking.
+     *
+     * @param fn The transformation.
+     * @param thrown Maps anything thrown by <code>fn</code> to the fail value of the resulting promise,
+     *               e.g. <code>RemoteException::thrown</code>.
+     * @return A promise finishing with the transformed value, or failing with the fail value of this promise.
+     */
+    public <Z> Promise<Z, Y> thenApply(Function<? super X, ? extends Z> fn,
+                                       Function<? super Throwable, ? extends Y> thrown) {
+        Deferred<Z, Y> result = new Deferred<>();
+
+        listen(x -> {
+            Z z;
 
-        if(cOk != null)
             try {
-                cOk.accept(x);
+                z = fn.apply(x);
             } catch(Throwable t) {
-                promiseStatus.set(Status.FAILED);
+                result.fail(thrown.apply(t));
+                return;
             }
 
-        onResolve();
+            result.finish(z);
+        }, result::fail);
 
-        resolveSync.countDown();
+        return result;
     }
 
     /**
-     * Block the current thread until the promise is resolved.
+     * Chain another asynchronous operation after this promise finishes, without blocking.
+     *
+     * @param fn Creates the promise of the next operation from the finish value of this one.
+     * @param thrown Maps anything thrown by <code>fn</code> to the fail value of the resulting promise,
+     *               e.g. <code>RemoteException::thrown</code>.
+     * @return A promise resolved like the promise returned by <code>fn</code>, or failing with the fail
+     *         value of this promise.
      */
-    public void resolve() {
-        try { resolveSync.await(); } catch(Exception e) { }
+    public <Z> Promise<Z, Y> thenCompose(Function<? super X, ? extends Promise<Z, Y>> fn,
+                                         Function<? super Throwable, ? extends Y> thrown) {
+        Deferred<Z, Y> result = new Deferred<>();
+
+        listen(x -> {
+            Promise<Z, Y> next;
+
+            try {
+                next = fn.apply(x);
+            } catch(Throwable t) {
+                result.fail(thrown.apply(t));
+                return;
+            }
+
+            next.listen(result::finish, result::fail);
+        }, result::fail);
+
+        return result;
+    }
+
+    /**
+     * Wait for all the promises, without blocking.
+     *
+     * @param promises The promises.
+     * @return A promise finishing with the list of finish values (in the same order as the promises)
+     *         once all of them finish, or failing with the first fail value.
+     */
+    public static <X, Y> Promise<List<X>, Y> allOf(Collection<? extends Promise<? extends X, ? extends Y>> promises) {
+        Deferred<List<X>, Y> result = new Deferred<>();
+
+        if(promises.isEmpty()) {
+            result.finish(new ArrayList<>());
+            return result;
+        }
+
+        Object[] values = new Object[promises.size()];
+        AtomicInteger remaining = new AtomicInteger(values.length);
+        int i = 0;
+
+        for(Promise<? extends X, ? extends Y> p : promises) {
+            int index = i++;
+
+            p.listen(x -> {
+                values[index] = x;
+
+                if(remaining.decrementAndGet() == 0) {
+                    List<X> list = new ArrayList<>(values.length);
+
+                    for(Object v : values) {
+                        @SuppressWarnings("unchecked")
+                        X value = (X) v;
+                        list.add(value);
+                    }
+
+                    result.finish(list);
+                }
+            }, result::fail);
+        }
+
+        return result;
+    }
+
+    /**
+     * Wait for the first promise to finish, without blocking.
+     *
+     * @param promises The promises.
+     * @return A promise finishing with the finish value of the first promise to finish, or failing with the
+     *         fail value of the last promise to fail if all of them fail. If there are no promises, it fails
+     *         with a null fail value.
+     */
+    public static <X, Y> Promise<X, Y> anyOf(Collection<? extends Promise<? extends X, ? extends Y>> promises) {
+        Deferred<X, Y> result = new Deferred<>();
+
+        if(promises.isEmpty()) {
+            result.fail(null);
+            return result;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(promises.size());
+
+        for(Promise<? extends X, ? extends Y> p : promises)
+            p.listen(result::finish, y -> {
+                if(remaining.decrementAndGet() == 0)
+                    result.fail(y);
+            });
+
+        return result;
+    }
+
+    /**
+     * Convert the promise to a CompletableFuture, completed when the promise is resolved.
+     * If the fail value isn't a Throwable, the future is completed with a CompletionException describing it.
+     *
+     * @return The future.
+     */
+    public CompletableFuture<X> toCompletableFuture() {
+        CompletableFuture<X> future = new CompletableFuture<>();
+
+        listen(future::complete, y -> future.completeExceptionally(y instanceof Throwable
+                ? (Throwable) y
+                : new CompletionException("Promise failed: " + y, null)));
+
+        return future;
+    }
+
+    /**
+     * Convert a CompletionStage to a promise, resolved when the stage completes.
+     *
+     * @param stage The stage.
+     * @return A promise finishing with the stage result, or failing with the exception which completed it.
+     */
+    public static <X> Promise<X, Throwable> fromCompletionStage(CompletionStage<X> stage) {
+        Deferred<X, Throwable> result = new Deferred<>();
+
+        stage.whenComplete((x, t) -> {
+            if(t == null)
+                result.finish(x);
+            else
+                result.fail(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+        });
+
+        return result;
     }
 }
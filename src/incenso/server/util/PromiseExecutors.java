@@ -0,0 +1,65 @@
+package incenso.server.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for executors able to run promises.
+ *
+ * Promises spend most of their life waiting for the remote side, so the executor should be able to
+ * keep many of them in flight without creating a platform thread for every single one.
+ *
+ * @see Promise#setExecutor(Executor)
+ */
+public class PromiseExecutors {
+    /**
+     * A thread factory producing daemon threads, so that idle promise threads never keep the JVM alive.
+     */
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+
+        return r -> {
+            Thread t = new Thread(r, name + " #" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * An executor which runs every promise in its own virtual thread.
+     * Virtual threads are only available on newer JVMs - when they're missing, a cached pool of
+     * platform threads is used instead, which still reuses idle threads instead of creating new ones.
+     *
+     * @return The executor.
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return cached();
+        }
+    }
+
+    /**
+     * An unbounded pool of platform threads. Idle threads are reused, and terminated after a minute
+     * of inactivity.
+     *
+     * @return The executor.
+     */
+    public static ExecutorService cached() {
+        return Executors.newCachedThreadPool(daemonFactory("Pending promise."));
+    }
+
+    /**
+     * A pool with a fixed amount of platform threads. Promises exceeding the limit are queued.
+     *
+     * Note: A promise occupies a thread for as long as it's processed, so a promise waiting for other
+     * promises (e.g. by calling <code>resolve</code>) may starve a pool that's too small.
+     *
+     * @param threads The maximum amount of promises processed at once.
+     * @return The executor.
+     */
+    public static ExecutorService bounded(int threads) {
+        return Executors.newFixedThreadPool(threads, daemonFactory("Pending promise."));
+    }
+}
@@ -7,10 +7,71 @@ package incenso.server.util;
  * @author Kamila Szewczyk
  */
 public class RemoteException extends Exception {
+    /**
+     * What went wrong, as far as the caller is concerned.
+     */
+    public enum Kind {
+        /**
+         * Any other fault.
+         */
+        OTHER,
+
+        /**
+         * The connection has been lost before the request has been answered. The request may or may not
+         * have been executed, and it's generally safe to retry it on another client.
+         */
+        DISCONNECTED,
+
+        /**
+         * The request hasn't been answered within the request timeout. It may still be running.
+         */
+        TIMED_OUT,
+
+        /**
+         * The chunk couldn't be loaded or instantiated on the client. The cause is the original error.
+         */
+        INSTANTIATION,
+
+        /**
+         * The chunk has failed while processing its input. The cause is the exception thrown by the chunk.
+         */
+        EXECUTION,
+
+        /**
+         * The request has been cancelled. The client has been asked to interrupt it, but it may have finished.
+         */
+        CANCELLED
+    }
+
+    private final Kind kind;
+
     public RemoteException(String msg) {
-        super(msg);
+        this(Kind.OTHER, msg, null);
     }
     public RemoteException(String msg, Throwable cause) {
+        this(Kind.OTHER, msg, cause);
+    }
+    public RemoteException(Kind kind, String msg) {
+        this(kind, msg, null);
+    }
+    public RemoteException(Kind kind, String msg, Throwable cause) {
         super(msg, cause);
+        this.kind = kind;
+    }
+
+    /**
+     * @return What went wrong.
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Wrap something thrown by a continuation, e.g. one passed to <code>Promise.thenApply</code>.
+     * @param cause What has been thrown.
+     * @return The exception.
+     */
+    public static RemoteException thrown(Throwable cause) {
+        return new RemoteException("The continuation has thrown an exception.", cause);
     }
 }
@@ -0,0 +1,86 @@
+package incenso.server.util;
+
+import java.util.Arrays;
+
+/**
+ * Tracks round trip times - a smoothed average, as used by TCP, and the percentiles of the latest samples.
+ *
+ * Thread-safe.
+ */
+public class RttTracker {
+    /**
+     * The weight of the newest sample in the average.
+     */
+    private static final double WEIGHT = 0.125;
+
+    /**
+     * The latest samples, in milliseconds. A ring buffer.
+     */
+    private final double[] samples;
+
+    private int count = 0, next = 0;
+
+    private double average = 0;
+
+    /**
+     * @param window The amount of the latest samples the percentiles are computed from.
+     */
+    public RttTracker(int window) {
+        if(window <= 0)
+            throw new IllegalArgumentException("window <= 0");
+
+        samples = new double[window];
+    }
+
+    /**
+     * Record a round trip.
+     * @param millis The round trip time in milliseconds.
+     */
+    public synchronized void record(double millis) {
+        average = count == 0 ? millis : average + WEIGHT * (millis - average);
+
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * @return The smoothed round trip time in milliseconds, or zero if nothing has been recorded yet.
+     */
+    public synchronized double getAverage() {
+        return average;
+    }
+
+    /**
+     * @param q The quantile, between 0 and 1 - e.g. 0.99 for the 99th percentile.
+     * @return The round trip time below which a given fraction of the latest samples falls, in milliseconds,
+     *         or zero if nothing has been recorded yet.
+     */
+    public double getPercentile(double q) {
+        if(q < 0 || q > 1)
+            throw new IllegalArgumentException("q < 0 || q > 1");
+
+        double[] sorted;
+
+        synchronized(this) {
+            if(count == 0)
+                return 0;
+
+            sorted = Arrays.copyOf(samples, count);
+        }
+
+        // Sorting a copy keeps recording cheap; the percentiles are only read once in a while.
+        Arrays.sort(sorted);
+
+        // The nearest-rank method.
+        int rank = (int) Math.ceil(q * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * @return The amount of samples the percentiles are computed from.
+     */
+    public synchronized int getSamples() {
+        return count;
+    }
+}